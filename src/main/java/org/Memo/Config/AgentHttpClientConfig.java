@@ -0,0 +1,54 @@
+package org.Memo.Config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.okhttp3.OkHttpMetricsEventListener;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 调 Agent HTTP 接口（每日总结等）用的共享客户端：keep-alive 连接池 + 有界并发 + 明确的超时，
+ * 夜间批量时不再每次新建连接，也不会无限挂住。
+ */
+@Configuration
+public class AgentHttpClientConfig {
+
+    @Bean
+    public OkHttpClient agentHttpClient(@Value("${agent.http.connect-timeout-ms:2000}") long connectTimeoutMs,
+                                        @Value("${agent.http.read-timeout-ms:120000}") long readTimeoutMs,
+                                        @Value("${agent.http.call-timeout-ms:300000}") long callTimeoutMs,
+                                        @Value("${agent.http.max-requests:64}") int maxRequests,
+                                        @Value("${agent.http.max-requests-per-host:16}") int maxRequestsPerHost,
+                                        @Value("${agent.http.pool.max-idle:16}") int maxIdle,
+                                        @Value("${agent.http.pool.keep-alive-seconds:300}") long keepAliveSeconds,
+                                        MeterRegistry registry) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        ConnectionPool pool = new ConnectionPool(maxIdle, keepAliveSeconds, TimeUnit.SECONDS);
+
+        // 连接池 / 调度器利用率
+        Gauge.builder("agent.http.pool.connections", pool, ConnectionPool::connectionCount).register(registry);
+        Gauge.builder("agent.http.pool.idle", pool, ConnectionPool::idleConnectionCount).register(registry);
+        Gauge.builder("agent.http.calls.running", dispatcher, Dispatcher::runningCallsCount).register(registry);
+        Gauge.builder("agent.http.calls.queued", dispatcher, Dispatcher::queuedCallsCount).register(registry);
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(pool)
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .callTimeout(callTimeoutMs, TimeUnit.MILLISECONDS)
+                // 请求耗时：agent.http.requests{uri,status,...}
+                .eventListener(OkHttpMetricsEventListener.builder(registry, "agent.http.requests")
+                        .uriMapper(req -> req.url().encodedPath())
+                        .build())
+                .build();
+    }
+}
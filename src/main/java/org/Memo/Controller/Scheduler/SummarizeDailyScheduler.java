@@ -1,9 +1,12 @@
 package org.Memo.Controller.Scheduler;
 
 
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.Memo.Service.DailySummarizeService;
+import org.Memo.Service.SummarizeDispatcher;
+import org.Memo.Service.SummarizeJobService;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
@@ -11,6 +14,9 @@ import org.springframework.stereotype.Component;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Component
 @RequiredArgsConstructor
@@ -18,18 +24,63 @@ import java.time.ZonedDateTime;
 public class SummarizeDailyScheduler {
 
     private final DailySummarizeService service;
+    private final SummarizeJobService jobService;
+    private final SummarizeDispatcher dispatcher;
+
+    /** 开启后只负责入队，由各副本的 SummarizeJobWorker 认领执行 */
+    @Value("${app.summarize.queue.enabled:false}")
+    private boolean queueEnabled;
 
     // 用配置项控制时区和 cron，方便改
     @Value("${app.tz:Asia/Shanghai}")
     private String tz;
 
+    /** 非队列、非整形派发时整批总结在这条专用线程上跑，不占 @Scheduled 的公共调度线程（会话空闲巡检、局部摘要巡检都在上面） */
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ExecutorService runExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "summarize-daily");
+        t.setDaemon(true);
+        return t;
+    });
+
     // 每天 00:05 触发，跑“昨天”的总结（更稳妥，避开跨天写入/延迟）
     @Scheduled(cron = "${app.summarize.cron-daily:0 5 0 * * ?}", zone = "${app.tz:Asia/Shanghai}")
     public void runDaily() {
         log.info("SummarizeDailyScheduler Begin");
         ZoneId zone = ZoneId.of(tz);
         LocalDate target = ZonedDateTime.now(zone).minusDays(1).toLocalDate();
-        service.summarizeForDate(target,null);
+        if (queueEnabled) {
+            jobService.enqueueDaily(target);
+            return;
+        }
+        if (dispatcher.isEnabled()) {
+            // 按时间窗与速率摊开，在专用线程上跑，不占调度线程
+            dispatcher.dispatchAsync(target);
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            log.warn("summarize daily run still in progress, skip date={}", target);
+            return;
+        }
+        try {
+            runExecutor.execute(() -> {
+                try {
+                    service.summarizeForDate(target, null);
+                } catch (Exception e) {
+                    log.error("summarize daily run failed date={}", target, e);
+                } finally {
+                    running.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            running.set(false);
+            log.warn("summarize daily run not started date={}: {}", target, e.toString());
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        runExecutor.shutdownNow();
     }
 
     // 如果你还需要“每周日 00:00 回顾上周 7 天”的任务，保留这个：
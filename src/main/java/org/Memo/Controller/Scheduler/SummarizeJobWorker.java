@@ -0,0 +1,66 @@
+package org.Memo.Controller.Scheduler;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.Memo.Service.SummarizeJobService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 每个副本都跑的队列 worker：定时轮询 summarize_job，有任务就连续认领直到取空。
+ * 只在 app.summarize.queue.enabled=true 时工作（依赖 PostgreSQL 的 SKIP LOCKED）。
+ *
+ * 取空队列可能要跑很久，放在专用线程上做；@Scheduled 的公共调度线程只负责触发，
+ * 不会因此卡住会话空闲巡检、局部摘要巡检等其它定时任务。上一轮没跑完时本次触发直接跳过。
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SummarizeJobWorker {
+
+    private final SummarizeJobService jobService;
+
+    @Value("${app.summarize.queue.enabled:false}")
+    private boolean enabled;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final ExecutorService drainExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "summarize-queue-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Scheduled(fixedDelayString = "${app.summarize.queue.poll-interval-ms:5000}")
+    public void poll() {
+        if (!enabled || !draining.compareAndSet(false, true)) return;
+        try {
+            drainExecutor.execute(this::drain);
+        } catch (RuntimeException e) {
+            draining.set(false);
+            log.warn("summarize queue drain not started: {}", e.toString());
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        drainExecutor.shutdownNow();
+    }
+
+    private void drain() {
+        try {
+            while (!Thread.currentThread().isInterrupted() && jobService.runOnce() > 0) {
+                // 继续认领下一批
+            }
+        } catch (Exception e) {
+            log.error("summarize queue poll error", e);
+        } finally {
+            draining.set(false);
+        }
+    }
+}
@@ -2,67 +2,115 @@ package org.Memo.Controller;
 
 
 import lombok.RequiredArgsConstructor;
+import org.Memo.DTO.ApiResponse;
 import org.Memo.Service.DailySummarizeService;
-import org.Memo.Service.PushSummaryService;
+import org.Memo.Service.SummarizeJobService;
+import org.Memo.Service.SummarizeOpsJobService;
 import org.apache.catalina.valves.JsonAccessLogValve;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequiredArgsConstructor
 @RequestMapping("/ops/summarize")
 public class SummarizeOpsController {
 
-    private final DailySummarizeService service;
-    private final PushSummaryService pushSummaryService;
+    private final SummarizeJobService jobService;
+    private final SummarizeOpsJobService opsJobService;
 
-    private static final ScheduledExecutorService PUSH_SCHEDULER = Executors.newSingleThreadScheduledExecutor();
+    private static final String BACKFILL_UNSUPPORTED =
+            "backfill needs PostgreSQL (summarize_job); run /ops/summarize/daily per date instead";
 
+    /**
+     * 提交每日总结，立即返回任务号：
+     * 传 dates 时为多日期回填（返回 backfill:xxx，用 /backfill/{runKey} 查进度）；
+     * 否则为单日任务（返回 ops:xxx，用 /jobs/{jobId} 与 /jobs/{jobId}/results 查询），
+     * 指定 unionIds 时每个用户总结落库后立即推送。
+     */
     @PostMapping("/daily")
-    public String daily(@RequestParam(value = "date", required = false) String date,
-                        @RequestParam(value = "dates", required = false) List<String> dates,
-                        @RequestParam(value = "tz", defaultValue = "Asia/Shanghai") String tz,
-                        @RequestParam(value = "unionIds", required = false) List<String> unionIds) {
-        // 0) 传入 dates：批量日期强制刷新（忽略 unionIds）
+    public ApiResponse<String> daily(@RequestParam(value = "date", required = false) String date,
+                                     @RequestParam(value = "dates", required = false) List<String> dates,
+                                     @RequestParam(value = "tz", defaultValue = "Asia/Shanghai") String tz,
+                                     @RequestParam(value = "unionIds", required = false) List<String> unionIds,
+                                     @RequestParam(value = "force", defaultValue = "false") boolean force) {
+        // force=true：忽略输入指纹，无条件重新调用 Agent
+        // 0) 传入 dates：转为后台回填（忽略 unionIds），输入没变的用户按指纹跳过；用返回的批次号查进度
         if (dates != null && !dates.isEmpty()) {
             List<LocalDate> targetDates = dates.stream()
                     .map(LocalDate::parse)
                     .toList();
-            service.summarizeForDates(targetDates);
-            return "OK batch-dates " + targetDates;
+            if (!jobService.backfillSupported()) return ApiResponse.fail(501, BACKFILL_UNSUPPORTED);
+            return ApiResponse.ok(jobService.startBackfill(targetDates, force));
+        }
+        if (date == null) {
+            return ApiResponse.fail(400, "date or dates required");
         }
 
         LocalDate d = LocalDate.parse(date); // 例如 2025-10-10
 
-        // 1) 未传 unionIds -> 走原有批量逻辑（当天全部用户，幂等）
-        if (unionIds == null || unionIds.isEmpty()) {
-            service.summarizeForDate(d, null);
-            return "OK batch-all " + d;
+        // 1) 未传 unionIds -> 当天全部用户（幂等）；2) 传了 -> 只重算这些用户并推送
+        try {
+            return ApiResponse.ok(opsJobService.submit(d, unionIds, force));
+        } catch (RejectedExecutionException e) {
+            return ApiResponse.fail(429, "too many summarize jobs, retry later");
         }
+    }
 
-        service.summarizeForDate(d, unionIds);
+    @GetMapping("/jobs/{jobId}")
+    public ApiResponse<SummarizeOpsJobService.JobStatus> job(@PathVariable("jobId") String jobId) {
+        return opsJobService.status(jobId)
+                .map(ApiResponse::ok)
+                .orElseGet(() -> ApiResponse.fail(404, "job not found: " + jobId));
+    }
+
+    @GetMapping("/jobs/{jobId}/results")
+    public ApiResponse<Map<String, DailySummarizeService.UserOutcome>> jobResults(@PathVariable("jobId") String jobId) {
+        return opsJobService.results(jobId)
+                .map(ApiResponse::ok)
+                .orElseGet(() -> ApiResponse.fail(404, "job not found: " + jobId));
+    }
 
-        // 简单延迟 1 分钟推送（仅用于手动触发场景）
-        PUSH_SCHEDULER.schedule(() -> {
-            try {
-                for (String unionId : unionIds) {
-                    pushSummaryService.sendDailySummary(unionId, d);
-                    System.out.println("trigger push after 1min, unionId=" + unionId + ", date=" + d);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }, 1, TimeUnit.MINUTES);
+    /**
+     * 多日期回填：dates 或 [from, to] 闭区间，后台执行，立即返回批次号。
+     */
+    @PostMapping("/backfill")
+    public ApiResponse<String> backfill(@RequestParam(value = "dates", required = false) List<String> dates,
+                                        @RequestParam(value = "from", required = false) String from,
+                                        @RequestParam(value = "to", required = false) String to,
+                                        @RequestParam(value = "force", defaultValue = "false") boolean force) {
+        List<LocalDate> targetDates = new ArrayList<>();
+        if (dates != null) {
+            dates.stream().map(LocalDate::parse).forEach(targetDates::add);
+        }
+        if (from != null && to != null) {
+            LocalDate.parse(from).datesUntil(LocalDate.parse(to).plusDays(1)).forEach(targetDates::add);
+        }
+        if (targetDates.isEmpty()) {
+            return ApiResponse.fail(400, "dates or from/to required");
+        }
+        if (!jobService.backfillSupported()) return ApiResponse.fail(501, BACKFILL_UNSUPPORTED);
+        return ApiResponse.ok(jobService.startBackfill(targetDates, force));
+    }
 
-        return "OK batch-manual " + d + " unionIds=" + unionIds;
+    /** 回填进度：done / failed / remaining 与预计剩余秒数 */
+    @GetMapping("/backfill/{runKey}")
+    public ApiResponse<SummarizeJobService.BackfillStatus> backfillStatus(@PathVariable("runKey") String runKey) {
+        if (!jobService.backfillSupported()) return ApiResponse.fail(501, BACKFILL_UNSUPPORTED);
+        SummarizeJobService.BackfillStatus status = jobService.backfillStatus(runKey);
+        if (status.startedAt() == null && status.total() == 0) {
+            return ApiResponse.fail(404, "run not found: " + runKey);
+        }
+        return ApiResponse.ok(status);
     }
 
 }
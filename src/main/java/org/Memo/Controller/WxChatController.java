@@ -8,6 +8,7 @@ import org.Memo.DTO.SummaryModel;
 import org.Memo.Entity.User;
 import org.Memo.Repo.ChatRecordRepository;
 import org.Memo.Service.ChatRecordService;
+import org.Memo.Service.ConversationSessionManager;
 import org.Memo.Service.DailySummaryService;
 import org.Memo.Service.OkHttpAgentClient;
 import org.Memo.Service.UserService;
@@ -27,7 +28,7 @@ import java.security.MessageDigest;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,6 +46,7 @@ public class WxChatController {
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final ChatRecordService chatRecordService;
     private final DailySummaryService dailySummaryService;
+    private final ConversationSessionManager sessionManager;
 
     // 使用服务号的 appid / secret（不要用小程序的）
     @Value("${wx.oa.appid}")
@@ -142,29 +144,28 @@ public class WxChatController {
         log.info("[WX POST] traceId={}, unionId={}, content={}", unionId, fromUser, content);
 
         try {
-            // 使用你已有的 per-user executor，保证同一用户消息顺序
-            Executor executor = recordService.executorFor(unionId);
-            executor.execute(() -> {
-                try {
-                    Instant now = Instant.now();
-                    var rec = recordService.createSession(unionId, now);
-                    var sessionId = rec.getSessionId();
-                    List<ChatRecordService.MsgItem> preChat = chatRecordService.getPreChatByUnionIdAndDay(unionId);
-
-                    // 1. 记录用户消息
-                    recordService.append(sessionId, "user", content, now);
-
-                    // 2. 调用 Agent 获取回复
-                    String reply = getReply(unionId, content, traceId, args, preChat);
-
-                    // 3. 写入助手消息
-                    recordService.append(sessionId, "assistant", reply, Instant.now());
-
-                    // 4. 通过「客服消息接口」异步推送给用户
-                    sendKfText(fromUser, reply);
-                } catch (Exception ex) {
-                    log.error("[WX] async handle error, traceId={}", traceId, ex);
-                }
+            // 同一用户串行：本条的回复落库并推送完成前，下一条不会开始；等待 Agent 期间不占线程
+            recordService.submitSerial(unionId, () -> {
+                Instant now = Instant.now();
+                // 空闲窗口内复用同一会话，不再每条消息新建一行 chat_record
+                var sessionId = sessionManager.sessionFor(unionId, now);
+                List<ChatRecordService.MsgItem> preChat = chatRecordService.getPreChatByUnionIdAndDay(unionId);
+
+                // 1. 记录用户消息
+                recordService.append(unionId, sessionId, "user", content, now);
+
+                // 2. 调用 Agent 获取回复
+                return getReply(unionId, content, traceId, args, preChat)
+                        .thenAcceptAsync(reply -> {
+                            // 3. 写入助手消息
+                            recordService.append(unionId, sessionId, "assistant", reply, Instant.now());
+
+                            // 4. 通过「客服消息接口」异步推送给用户
+                            sendKfText(fromUser, reply);
+                        }, recordService.callbackExecutor());
+            }).exceptionally(ex -> {
+                log.error("[WX] async handle error, traceId={}", traceId, ex);
+                return null;
             });
         } catch (Exception e) {
             log.error("[WX] submit async task error, traceId={}", traceId, e);
@@ -172,28 +173,36 @@ public class WxChatController {
         return "success";
     }
 
-    private String getReply(String unionId, String content, String traceId, HashMap<String, String> args,List<ChatRecordService.MsgItem> preChat) {
-        String reply;
+    /** 异步取回复；Agent 失败时以兜底文案完成，不会异常完成 */
+    private CompletableFuture<String> getReply(String unionId, String content, String traceId, HashMap<String, String> args,List<ChatRecordService.MsgItem> preChat) {
+        CompletableFuture<String> raw;
         try {
             List<SummaryModel> preSummary = dailySummaryService.getPreSummaryByUnionId(unionId);
-            String raw = agentClient.chat(unionId, content,preChat,preSummary, args);
-            // 尝试解析 JSON {"reply":"xxx"}
-            try {
-                var node = objectMapper.readTree(raw);
-                if (node.has("reply")) {
-                    reply = node.get("reply").asText();
-                } else {
-                    reply = raw;
-                }
-            } catch (Exception jsonEx) {
-                // 不是 JSON 就直接用原始内容
-                reply = raw;
-            }
+            raw = agentClient.chatAsync(unionId, content,preChat,preSummary, args);
         } catch (Exception e) {
-            log.error("[WX] agent error, traceId={}", traceId, e);
-            reply = "（服务异常，请稍后再试）";
+            raw = CompletableFuture.failedFuture(e);
+        }
+        return raw.handle((r, e) -> {
+            if (e != null) {
+                log.error("[WX] agent error, traceId={}", traceId, e);
+                return "（服务异常，请稍后再试）";
+            }
+            return parseReply(r);
+        });
+    }
+
+    private String parseReply(String raw) {
+        // 尝试解析 JSON {"reply":"xxx"}
+        try {
+            var node = objectMapper.readTree(raw);
+            if (node.has("reply")) {
+                return node.get("reply").asText();
+            }
+            return raw;
+        } catch (Exception jsonEx) {
+            // 不是 JSON 就直接用原始内容
+            return raw;
         }
-        return reply;
     }
 
 
@@ -1,22 +1,30 @@
 package org.Memo.Controller.ws;
 
+import com.alibaba.fastjson2.JSON;
 import jakarta.websocket.*;
 import jakarta.websocket.server.PathParam;
 import jakarta.websocket.server.ServerEndpoint;
 import lombok.extern.slf4j.Slf4j;
 import org.Memo.Config.SpringEndpointConfigurator;
 import org.Memo.DTO.SummaryModel;
+import org.Memo.Service.AgentStream;
 import org.Memo.Service.ChatRecordService;
 import org.Memo.Service.OkHttpAgentClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.UUID;
 
 @ServerEndpoint(value = "/ws/chat/{openid}", configurator = SpringEndpointConfigurator.class)
@@ -30,6 +38,22 @@ public class ChatWebSocket {
     @Autowired
     private OkHttpAgentClient agentClient;
 
+    /** 单个会话最多消息数，达到后轮换新会话 */
+    @Value("${app.chat.ws.max-messages-per-session:200}")
+    private int maxMessagesPerSession;
+
+    /** 流式模式：Agent 每推一帧就转发 {"type":"delta"}，结束发 {"type":"end"}；关闭时保持原来的整段回复 */
+    @Value("${agent.ws.streaming:false}")
+    private boolean streaming;
+
+    /** 单个连接发送队列里最多积压的帧数；流式增量超过它就取消 Agent 流，不让慢客户端拖住 Agent 的读线程 */
+    @Value("${app.chat.ws.send-queue-frames:256}")
+    private int sendQueueFrames;
+
+    private static final String STREAM_KEY = "agentStream";
+    private static final String OUTBOX_KEY = "outbox";
+    private static final String FALLBACK_REPLY = "（服务异常，请稍后再试）";
+
     // 如果一个 openid 可能同时多端在线，用 Set<Session>；否则可用 Map<SessionId, Session>
     private static final Map<String, Set<Session>> OPENID_SESSIONS = new ConcurrentHashMap<>();
 
@@ -46,6 +70,7 @@ public class ChatWebSocket {
         UUID sessionId = rec.getSessionId();
         session.getUserProperties().put("openid", openid);
         session.getUserProperties().put("sessionId", sessionId);
+        session.getUserProperties().put(OUTBOX_KEY, new Outbox(session, Math.max(1, sendQueueFrames)));
 
         // 下发 ack（客户端保存 sessionId，后续展示用）
         send(session, "{\"type\":\"sessionAck\",\"sessionId\":\"" + sessionId + "\"}");
@@ -63,39 +88,139 @@ public class ChatWebSocket {
             close(session, "unauthorized"); return;
         }
 
-        // 串行执行：同一 openid 的消息严格顺序
-        recordService.executorFor(openid).submit(() -> {
-            Instant now = Instant.now();
+        // 串行执行：同一 openid 的消息严格顺序；上一条的回复落库前下一条不会开始，等 Agent 期间不占线程
+        try {
+            recordService.submitSerial(openid, () -> handleMessage(session, openid, message))
+                    .exceptionally(e -> {
+                        log.error("WS handle error, openid={}", openid, e);
+                        return null;
+                    });
+        } catch (RejectedExecutionException e) {
+            log.warn("WS message rejected, openid={}, cause={}", openid, e.getMessage());
+            send(session, "（消息太多啦，请稍后再试）");
+        }
+    }
+
+    private CompletableFuture<Void> handleMessage(Session session, String openid, String message) {
+        // 在串行任务里再取 sessionId：前一条消息可能刚触发了会话轮换
+        UUID sessionId = (UUID) session.getUserProperties().get("sessionId");
+        Instant now = Instant.now();
+
+        // 1) 先把 user 消息追加进该会话
+        recordService.append(openid, sessionId, "user", message, now);
 
-            // 1) 先把 user 消息追加进该会话
-            recordService.append(sessionId, "user", message, now);
+        if (streaming) {
+            return handleStreaming(session, openid, sessionId, message);
+        }
 
-            // 2) 调用 Agent（非流式）
-            String reply;
-            try {
-                reply = agentClient.chatWs(openid, message,new ArrayList<>(),new ArrayList<>());
-                if (reply == null) reply = "";
-            } catch (Exception e) {
+        // 2) 调用 Agent（非流式），回复到达后切回虚拟线程落库
+        CompletableFuture<String> call;
+        try {
+            call = agentClient.chatWsAsync(openid, message, new ArrayList<>(), new ArrayList<>());
+        } catch (Exception e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        return call.handle((reply, e) -> {
+            if (e != null) {
                 log.error("agent error", e);
-                reply = "（服务异常，请稍后再试）";
+                return FALLBACK_REPLY;
             }
-
+            return reply == null ? "" : reply;
+        }).thenComposeAsync(reply -> {
             // 3) 把 assistant 回复也追加
-            recordService.append(sessionId, "assistant", reply, Instant.now());
+            CompletableFuture<ChatRecordService.AppendResult> appended =
+                    recordService.appendAsync(openid, sessionId, "assistant", reply, Instant.now());
 
             // 4) 推回客户端
             send(session, reply);
 
-            // 5) （可选）达到阈值就结束会话，客户端自动重连新会话
-            int MAX_COUNT = 200;
-            // 轻量做法：这里不再读库；你也可以在 append 返回最新 count，再判断。
-            // 为简化，这里省略阈值判断的落库查询逻辑。
-        });
+            // 5) 达到阈值就结束当前会话、换新会话继续；ASYNC write-behind 下等所在批次提交拿到计数，串行队列随之等待
+            return appended.thenAcceptAsync(r -> rotateIfFull(session, openid, sessionId, r), recordService.callbackExecutor());
+        }, recordService.callbackExecutor());
+    }
+
+    /**
+     * 流式转发：增量帧边到边推给客户端，流结束后把完整回复只落库一次，再发 end 帧。
+     * 客户端中途断开时 onClose 会取消 Agent 流并关闭会话；已生成的部分仍追加进这个刚关闭的会话
+     * （append 不检查会话是否已关闭，这是有意的），保证会话记录与用户看到的一致，但不再发 end 帧、不轮换会话。
+     */
+    private CompletableFuture<Void> handleStreaming(Session session, String openid, UUID sessionId, String message) {
+        AgentStream stream;
+        try {
+            // 增量帧只入该连接的发送队列，Agent 的读线程不等客户端；积压满了说明客户端跟不上，取消这次流
+            stream = agentClient.chatStream(openid, message, new ArrayList<>(), new ArrayList<>(),
+                    delta -> {
+                        if (!sendDelta(session, JSON.toJSONString(Map.of("type", "delta", "content", delta)))
+                                && session.getUserProperties().get(STREAM_KEY) instanceof AgentStream slow) {
+                            log.warn("WS send queue full, cancel agent stream id={}", session.getId());
+                            slow.cancel();
+                        }
+                    });
+        } catch (Exception e) {
+            log.error("agent stream error openid={}", openid, e);
+            return CompletableFuture.completedFuture("")
+                    .thenComposeAsync(reply -> finishStreaming(session, openid, sessionId, reply), recordService.callbackExecutor());
+        }
+        session.getUserProperties().put(STREAM_KEY, stream);
+
+        return stream.completion().handle((r, e) -> {
+            session.getUserProperties().remove(STREAM_KEY);
+            if (e == null) return r;
+            String partial = stream.partial();
+            boolean cancelled = e instanceof CancellationException || e.getCause() instanceof CancellationException;
+            if (cancelled) {
+                log.info("agent stream cancelled openid={} partialChars={}", openid, partial.length());
+                return partial.isEmpty() ? null : partial;
+            }
+            log.error("agent stream error openid={}", openid, e);
+            return partial;
+        }).thenComposeAsync(reply -> reply == null
+                ? CompletableFuture.<Void>completedFuture(null)
+                : finishStreaming(session, openid, sessionId, reply), recordService.callbackExecutor());
+    }
+
+    /** 流结束：出错且一个字都没收到时补发兜底文案；完整回复落库一次，落库后发带 seq 的 end 帧 */
+    private CompletableFuture<Void> finishStreaming(Session session, String openid, UUID sessionId, String reply) {
+        if (reply.isEmpty()) {
+            reply = FALLBACK_REPLY;
+            send(session, JSON.toJSONString(Map.of("type", "delta", "content", reply)));
+        }
+        return recordService.appendAsync(openid, sessionId, "assistant", reply, Instant.now())
+                .thenAcceptAsync(appended -> {
+                    if (!session.isOpen()) return;   // 客户端已断开：会话已由 onClose 关闭，不发 end、不再新建会话
+                    Map<String, Object> end = new LinkedHashMap<>();
+                    end.put("type", "end");
+                    end.put("seq", appended.seq());
+                    send(session, JSON.toJSONString(end));
+
+                    rotateIfFull(session, openid, sessionId, appended);
+                }, recordService.callbackExecutor());
+    }
+
+    /** 达到阈值就轮换会话（append 已带回最新 count，不再读库）；连接已断开时不轮换，否则新会话没人会关闭 */
+    private void rotateIfFull(Session session, String openid, UUID sessionId, ChatRecordService.AppendResult appended) {
+        if (session.isOpen() && appended.messageCount() >= maxMessagesPerSession) {
+            rotateSession(session, openid, sessionId);
+        }
+    }
+
+    /** 关闭旧会话并新建一个，下发新的 sessionAck；连接本身不断开 */
+    private void rotateSession(Session session, String openid, UUID oldSessionId) {
+        Instant now = Instant.now();
+        recordService.close(oldSessionId, now);
+        UUID newSessionId = recordService.createSession(openid, now).getSessionId();
+        session.getUserProperties().put("sessionId", newSessionId);
+        send(session, "{\"type\":\"sessionAck\",\"sessionId\":\"" + newSessionId + "\"}");
+        log.info("WS session rotated openid={}, old={}, new={}", openid, oldSessionId, newSessionId);
     }
 
 
     @OnClose
     public void onClose(Session session, CloseReason reason) {
+        // 客户端已断开，不再让 Agent 继续生成
+        if (session.getUserProperties().get(STREAM_KEY) instanceof AgentStream stream) {
+            stream.cancel();
+        }
         UUID sid = (UUID) session.getUserProperties().get("sessionId");
         if (sid != null) recordService.close(sid, Instant.now());
         log.info("WS closed sid={}, reason={}", sid, reason);
@@ -106,13 +231,83 @@ public class ChatWebSocket {
         log.error("WS error", t);
     }
 
+    /** 入该连接的发送队列，按入队顺序写出；回复、ack、end 这类帧不受积压上限限制 */
     private static void send(Session s, String text) {
+        if (s == null || !s.isOpen()) return;
+        if (s.getUserProperties().get(OUTBOX_KEY) instanceof Outbox outbox) {
+            outbox.offer(text, false);
+        } else {
+            sendNow(s, text);
+        }
+    }
+
+    /** 流式增量帧：积压达到上限时不入队，返回 false */
+    private static boolean sendDelta(Session s, String text) {
+        if (s == null || !s.isOpen()) return true;
+        if (s.getUserProperties().get(OUTBOX_KEY) instanceof Outbox outbox) {
+            return outbox.offer(text, true);
+        }
+        sendNow(s, text);
+        return true;
+    }
+
+    /** 同步发送并按会话加锁：异步发送在上一帧未写完时会抛 IllegalStateException */
+    private static void sendNow(Session s, String text) {
         if (s != null && s.isOpen()) {
-            s.getAsyncRemote().sendText(text, r -> {});
+            synchronized (s) {
+                try {
+                    s.getBasicRemote().sendText(text);
+                } catch (Exception e) {
+                    log.warn("WS send failed id={} cause={}", s.getId(), e.toString());
+                }
+            }
         }
     }
+
     private static void close(Session s, String reason) {
         try { s.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, reason)); } catch (Exception ignore) {}
     }
 
+    /**
+     * 单个连接的发送队列：调用方（Agent 读线程、回调执行器）只入队，有积压时由一个虚拟线程按顺序阻塞写出，
+     * 写完即退出；连接关闭后剩余的帧直接丢弃。
+     */
+    private static final class Outbox {
+        private final Session session;
+        private final int capacity;
+        private final ArrayDeque<String> frames = new ArrayDeque<>();
+        private boolean draining;
+
+        private Outbox(Session session, int capacity) {
+            this.session = session;
+            this.capacity = capacity;
+        }
+
+        private boolean offer(String text, boolean droppable) {
+            synchronized (this) {
+                if (droppable && frames.size() >= capacity) return false;
+                frames.addLast(text);
+                if (draining) return true;
+                draining = true;
+            }
+            Thread.ofVirtual().name("ws-send-" + session.getId()).start(this::drain);
+            return true;
+        }
+
+        private void drain() {
+            while (true) {
+                String next;
+                synchronized (this) {
+                    next = frames.pollFirst();
+                    if (next == null || !session.isOpen()) {
+                        frames.clear();
+                        draining = false;
+                        return;
+                    }
+                }
+                sendNow(session, next);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,42 @@
+package org.Memo.Entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * 单条聊天消息：一条消息一行，追加是 O(1) 的 INSERT。
+ * chat_record 只保留会话头（计数、起止时间、版本）。
+ */
+@Entity
+@Data
+@Table(name = "chat_message")
+@IdClass(ChatMessageId.class)
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ChatMessage {
+
+    @Id
+    @Column(name = "session_id", nullable = false, columnDefinition = "UUID")
+    private UUID sessionId;
+
+    /** 会话内序号，从 1 开始 */
+    @Id
+    @Column(name = "seq", nullable = false)
+    private Integer seq;
+
+    @Column(name = "ts", nullable = false)
+    private Instant ts;
+
+    @Column(name = "role", nullable = false, length = 16)
+    private String role;
+
+    @Column(name = "content", nullable = false, columnDefinition = "text")
+    private String content;
+}
@@ -0,0 +1,17 @@
+package org.Memo.Entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/** chat_message 复合主键 (session_id, seq) */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatMessageId implements Serializable {
+    private UUID sessionId;
+    private Integer seq;
+}
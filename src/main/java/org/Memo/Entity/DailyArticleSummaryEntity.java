@@ -49,6 +49,10 @@ public class DailyArticleSummaryEntity {
     @Column(name = "token_usage", columnDefinition = "jsonb")
     private String tokenUsageJson;
 
+    /** 生成本条总结时的输入指纹：sha256(model-tag + 打包后的当日对话)，输入没变就不必重算 */
+    @Column(name = "input_hash", length = 64)
+    private String inputHash;
+
     @Column(name = "created_at", nullable = false)
     private Instant createdAt = Instant.now();
 
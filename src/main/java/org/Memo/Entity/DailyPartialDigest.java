@@ -0,0 +1,57 @@
+package org.Memo.Entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.UUID;
+
+/**
+ * 会话级局部摘要：会话关闭或空闲时对该会话当天的消息先总结一次，
+ * 夜间每日总结用这些摘要加上 covered_until 之后的尾部消息作为输入，而不是全天原文。
+ */
+@Entity
+@Data
+@Table(name = "daily_partial_digest")
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class DailyPartialDigest {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "open_id", nullable = false, length = 128)
+    private String openId;
+
+    @Column(name = "summary_date", nullable = false)
+    private LocalDate summaryDate;
+
+    @Column(name = "session_id", nullable = false, columnDefinition = "UUID")
+    private UUID sessionId;
+
+    /** 覆盖的第一条消息时间，合并时摘要按它排在原文之间 */
+    @Column(name = "started_at", nullable = false)
+    private Instant startedAt;
+
+    /** 覆盖到的最后一条消息时间（含） */
+    @Column(name = "covered_until", nullable = false)
+    private Instant coveredUntil;
+
+    @Column(name = "message_count", nullable = false)
+    private Integer messageCount;
+
+    @Column(name = "digest", nullable = false, columnDefinition = "text")
+    private String digest;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Column(name = "updated_at", nullable = false)
+    private Instant updatedAt;
+}
@@ -0,0 +1,75 @@
+package org.Memo.Entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * 每日总结任务：一个 (用户, 日期) 一行，任意副本的 worker 用 SKIP LOCKED 认领并带租约执行，
+ * 租约过期未完成的会被重新认领。
+ */
+@Entity
+@Data
+@Table(name = "summarize_job")
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class SummarizeJob {
+
+    public static final String PENDING = "PENDING";
+    public static final String RUNNING = "RUNNING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "open_id", nullable = false, length = 128)
+    private String openId;
+
+    @Column(name = "summary_date", nullable = false)
+    private LocalDate summaryDate;
+
+    /** 入队批次，例如 daily:2025-10-10 */
+    @Column(name = "run_key", nullable = false, length = 64)
+    private String runKey;
+
+    /** false：已有总结就跳过（夜间批量）；true：按输入指纹重算 */
+    @Column(name = "recompute", nullable = false)
+    private boolean recompute;
+
+    /** 忽略输入指纹强制重算 */
+    @Column(name = "force", nullable = false)
+    private boolean force;
+
+    @Column(name = "status", nullable = false, length = 16)
+    private String status;
+
+    /** 计划开始时间：夜间任务按用户哈希摊到时间窗内，到点前不会被认领；为空表示立即可做 */
+    @Column(name = "not_before")
+    private Instant notBefore;
+
+    @Column(name = "attempts", nullable = false)
+    private int attempts;
+
+    @Column(name = "lease_until")
+    private Instant leaseUntil;
+
+    @Column(name = "locked_by", length = 128)
+    private String lockedBy;
+
+    @Column(name = "last_error", columnDefinition = "text")
+    private String lastError;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Column(name = "updated_at", nullable = false)
+    private Instant updatedAt;
+}
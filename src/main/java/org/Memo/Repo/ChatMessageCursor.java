@@ -0,0 +1,88 @@
+package org.Memo.Repo;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Collection;
+
+/**
+ * 全天消息（含局部摘要）的游标扫描：JDBC 按 fetch-size 分批取行、逐行回调，不经过 JPA 实体和持久化上下文。
+ * PostgreSQL 只有在非自动提交（事务内）时才真正用游标，调用方需在只读事务里调用。
+ */
+@Repository
+@RequiredArgsConstructor
+public class ChatMessageCursor {
+
+    /**
+     * 行按 open_id 聚在一起、组内按时间正序。已由 daily_partial_digest 覆盖的消息不再返回，
+     * 改为返回一行 role='digest' 的摘要（时间取摘要覆盖的第一条消息），夜间总结的输入就是“摘要 + 尾部原文”。
+     * openIds 非空时只查这些用户（一次查询，不再逐个用户查）；skipSummarized 时排除该日已有总结的用户。
+     */
+    private static final String DAY_MESSAGES_SQL = """
+        SELECT x.open_id, x.ts, x.role, x.content
+        FROM (
+            SELECT cr.open_id, m.ts, m.seq, m.role, m.content
+            FROM chat_message m
+            JOIN chat_record cr ON cr.session_id = m.session_id
+            LEFT JOIN daily_partial_digest d ON d.session_id = m.session_id AND d.summary_date = ?
+            WHERE m.ts >= ?
+              AND m.ts < ?
+              AND (d.covered_until IS NULL OR m.ts > d.covered_until)
+            UNION ALL
+            SELECT d.open_id, d.started_at, 0, 'digest', d.digest
+            FROM daily_partial_digest d
+            WHERE d.summary_date = ?
+        ) x
+        WHERE (CAST(? AS VARCHAR[]) IS NULL OR x.open_id = ANY(?))
+          AND (? = FALSE OR NOT EXISTS (
+                SELECT 1 FROM daily_article_summary s
+                WHERE s.open_id = x.open_id
+                  AND s.summary_date = ?))
+        ORDER BY x.open_id ASC, x.ts ASC, x.seq ASC
+        """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${app.summarize.fetch-size:500}")
+    private int fetchSize;
+
+    /** 一行消息的回调 */
+    @FunctionalInterface
+    public interface RowHandler {
+        void row(String openId, Instant ts, String role, String content);
+    }
+
+    public void scanDay(Instant start, Instant end, LocalDate summaryDate, Collection<String> openIds, boolean skipSummarized,
+                        RowHandler handler) {
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(DAY_MESSAGES_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            ps.setObject(1, summaryDate);
+            ps.setTimestamp(2, Timestamp.from(start));
+            ps.setTimestamp(3, Timestamp.from(end));
+            ps.setObject(4, summaryDate);
+            if (openIds == null) {
+                ps.setNull(5, Types.ARRAY);
+                ps.setNull(6, Types.ARRAY);
+            } else {
+                Array ids = con.createArrayOf("varchar", openIds.toArray());
+                ps.setArray(5, ids);
+                ps.setArray(6, ids);
+            }
+            ps.setBoolean(7, skipSummarized);
+            ps.setObject(8, summaryDate);
+            return ps;
+        }, (RowCallbackHandler) rs -> handler.row(
+                rs.getString(1), rs.getTimestamp(2).toInstant(), rs.getString(3), rs.getString(4)));
+    }
+}
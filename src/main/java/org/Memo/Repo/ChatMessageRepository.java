@@ -0,0 +1,109 @@
+package org.Memo.Repo;
+
+import org.Memo.Entity.ChatMessage;
+import org.Memo.Entity.ChatMessageId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface ChatMessageRepository extends JpaRepository<ChatMessage, ChatMessageId> {
+
+    /**
+     * 单条追加，一次往返：会话头计数 +1 后用新计数作为 seq 插入消息，
+     * 返回 seq / message_count / version；会话不存在时不返回行。
+     */
+    @Transactional
+    @Query(value = """
+        WITH hdr AS (
+            UPDATE chat_record
+            SET message_count = message_count + 1,
+                last_ts = :ts,
+                version = version + 1
+            WHERE session_id = :sid
+            RETURNING message_count, version
+        )
+        INSERT INTO chat_message(session_id, seq, ts, role, content)
+        SELECT :sid, hdr.message_count, :ts, :role, :content
+        FROM hdr
+        RETURNING seq AS "seq",
+                  (SELECT h.message_count FROM hdr h) AS "messageCount",
+                  (SELECT h.version FROM hdr h) AS "version"
+        """, nativeQuery = true)
+    Optional<AppendResultView> appendMessage(@Param("sid") UUID sessionId,
+                                             @Param("ts") Instant ts,
+                                             @Param("role") String role,
+                                             @Param("content") String content);
+
+    /**
+     * 批量追加（write-behind 合并写）：items 是 [{"ts","role","content"}...] 的 JSON 数组。
+     * 一条语句里先把会话头计数加 n，再按返回的基数给每条消息分配 seq 插入，
+     * 每条消息返回一行 seq / message_count / version；会话不存在时返回空。
+     */
+    @Transactional
+    @Query(value = """
+        WITH hdr AS (
+            UPDATE chat_record
+            SET message_count = message_count + jsonb_array_length(CAST(:items AS jsonb)),
+                last_ts = :ts,
+                version = version + 1
+            WHERE session_id = :sid
+            RETURNING message_count, version
+        )
+        INSERT INTO chat_message(session_id, seq, ts, role, content)
+        SELECT :sid,
+               hdr.message_count - jsonb_array_length(CAST(:items AS jsonb)) + e.ord,
+               CAST(e.item ->> 'ts' AS timestamptz), e.item ->> 'role', e.item ->> 'content'
+        FROM hdr, jsonb_array_elements(CAST(:items AS jsonb)) WITH ORDINALITY AS e(item, ord)
+        RETURNING seq AS "seq",
+                  (SELECT h.message_count FROM hdr h) AS "messageCount",
+                  (SELECT h.version FROM hdr h) AS "version"
+        """, nativeQuery = true)
+    List<AppendResultView> appendMessages(@Param("sid") UUID sessionId,
+                                          @Param("items") String itemsJson,
+                                          @Param("ts") Instant lastTs);
+
+    /** 追加语句 RETURNING 的结果 */
+    interface AppendResultView {
+        Integer getSeq();
+        Integer getMessageCount();
+        Long getVersion();
+    }
+
+    @Query("""
+        SELECT m FROM ChatMessage m
+        WHERE m.sessionId = :sid
+        ORDER BY m.seq ASC
+        """)
+    List<ChatMessage> findBySessionId(@Param("sid") UUID sessionId);
+
+    /** 某用户最近 limit 条消息（倒序，调用方自行翻转） */
+    @Query(value = """
+        SELECT m.*
+        FROM chat_message m
+        JOIN chat_record cr ON cr.session_id = m.session_id
+        WHERE cr.open_id = :openId
+        ORDER BY m.ts DESC, m.seq DESC
+        LIMIT :limit
+        """, nativeQuery = true)
+    List<ChatMessage> findRecentByOpenId(@Param("openId") String openId, @Param("limit") int limit);
+
+    /** 某用户在 [start, end) 内的所有消息，按时间正序（按消息时间归日，跨天会话也不会漏） */
+    @Query(value = """
+        SELECT m.*
+        FROM chat_message m
+        JOIN chat_record cr ON cr.session_id = m.session_id
+        WHERE cr.open_id = :openId
+          AND m.ts >= :start
+          AND m.ts < :end
+        ORDER BY m.ts ASC, m.seq ASC
+        """, nativeQuery = true)
+    List<ChatMessage> findByOpenIdAndDay(@Param("openId") String openId,
+                                         @Param("start") Instant start,
+                                         @Param("end") Instant end);
+}
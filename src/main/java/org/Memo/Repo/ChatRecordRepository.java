@@ -8,6 +8,7 @@ import org.springframework.data.jpa.repository.*;
 import org.springframework.data.repository.query.Param;
 
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Optional;
@@ -15,51 +16,52 @@ import java.util.UUID;
 public interface ChatRecordRepository extends JpaRepository<ChatRecord, Long> {
     Optional<ChatRecord> findBySessionId(UUID sessionId);
 
-    /**
-     * 原子地把一条消息 item 追加到 msgs 数组末尾，并更新计数/last_ts/version
-     * item 是 JSON 字符串，如：
-     *   {"seq":1,"ts":"2025-09-29T10:00:00Z","role":"user","content":"你好"}
-     */
-    @Modifying
-    @Query(value = """
-      UPDATE chat_record
-      SET msgs = CASE
-                    WHEN jsonb_typeof(msgs) = 'array' THEN msgs || CAST(:item AS jsonb)
-                    ELSE jsonb_build_array(msgs) || CAST(:item AS jsonb)
-                  END,
-          message_count = message_count + 1,
-          last_ts = :ts,
-          version = version + 1
-      WHERE session_id = :sid AND version = :ver
-      """, nativeQuery = true)
-    int appendMessage(@Param("sid") UUID sessionId,
-                      @Param("item") String itemJson,
-                      @Param("ts") Instant ts,
-                      @Param("ver") long currentVersion);
-
-
-    // 拉取该 open_id 在当日内的所有会话记录（用于展开 msgs）
+    /** 该用户最近一个尚未关闭的会话（服务重启后用来接上进行中的会话） */
     @Query(value = """
         SELECT *
         FROM chat_record cr
         WHERE cr.open_id = :openId
-          AND cr.started_at >= :start
-          AND COALESCE(cr.closed_at, cr.last_ts) < :end
-        ORDER BY cr.started_at ASC, cr.id ASC
+          AND cr.closed_at IS NULL
+        ORDER BY cr.last_ts DESC
+        LIMIT 1
+        """, nativeQuery = true)
+    Optional<ChatRecord> findLatestOpenByOpenId(@Param("openId") String openId);
+
+    /** 关闭会话：closed_at 不早于最后一条消息时间；已关闭的不动 */
+    @Modifying
+    @Query(value = """
+        UPDATE chat_record
+        SET closed_at = GREATEST(COALESCE(last_ts, :closedAt), :closedAt)
+        WHERE session_id = :sid
+          AND closed_at IS NULL
         """, nativeQuery = true)
-    List<ChatRecord> findMessagesByOpenIdAndDay(@Param("openId") String openId,
-                                                @Param("start")  Instant start,
-                                                @Param("end")    Instant end);
+    int closeSession(@Param("sid") UUID sessionId, @Param("closedAt") Instant closedAt);
 
-    // 当日所有 open_id（去重）
+    // 当日有会话活动的所有 open_id（去重）：会话时间段与 [start, end) 有交集即可，跨天会话两天都算
     @Query(value = """
         SELECT DISTINCT cr.open_id
         FROM chat_record cr
-        WHERE cr.started_at >= :start
-          AND COALESCE(cr.closed_at, cr.last_ts) < :end
+        WHERE cr.last_ts >= :start
+          AND cr.started_at < :end
         """, nativeQuery = true)
     List<String> findDistinctOpenIdsByDay(@Param("start") Instant start, @Param("end")   Instant end);
 
+    // 同上口径，但用反连接排除该日已有总结的用户：夜间批量一条查询拿到待总结名单，不再逐个 exists
+    @Query(value = """
+        SELECT DISTINCT cr.open_id
+        FROM chat_record cr
+        WHERE cr.last_ts >= :start
+          AND cr.started_at < :end
+          AND NOT EXISTS (
+              SELECT 1 FROM daily_article_summary s
+              WHERE s.open_id = cr.open_id
+                AND s.summary_date = :summaryDate
+          )
+        """, nativeQuery = true)
+    List<String> findOpenIdsNeedingSummary(@Param("start") Instant start,
+                                           @Param("end") Instant end,
+                                           @Param("summaryDate") LocalDate summaryDate);
+
 
     @Query("""
                 SELECT COUNT(c) FROM ChatRecord c
@@ -74,13 +76,4 @@ public interface ChatRecordRepository extends JpaRepository<ChatRecord, Long> {
         ORDER BY cr.started_at ASC
         """, nativeQuery = true)
     List<ChatRecord> findByUnionId(@Param("openId") String unionId);
-
-    @Query(value = """
-        SELECT *
-        FROM chat_record cr
-        WHERE cr.open_id = :openId
-        ORDER BY cr.started_at DESC
-        LIMIT 100
-        """, nativeQuery = true)
-    List<ChatRecord> findByUnionIdLimit100(@Param("openId") String unionId);
 }
@@ -8,6 +8,7 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -21,10 +22,10 @@ public interface DailyArticleSummaryRepository extends JpaRepository<DailyArticl
     @Transactional
     @Query(value = """
     INSERT INTO daily_article_summary(
-        open_id, summary_date, article, mood_keywords,action_keywords,memory_point,analyze_result,article_title, model, token_usage, created_at, updated_at
+        open_id, summary_date, article, mood_keywords,action_keywords,memory_point,analyze_result,article_title, model, token_usage, input_hash, created_at, updated_at
     )
     VALUES(:openId, :summaryDate, :article, :moodKeywords, :actionKeywords,:memoryPoint,:analyzeResult , :articleTitle, :model,
-           CAST(COALESCE(NULLIF(:tokenUsageJson, ''), '{}') AS jsonb),
+           CAST(COALESCE(NULLIF(:tokenUsageJson, ''), '{}') AS jsonb), :inputHash,
            NOW(), NOW())
     ON CONFLICT (open_id, summary_date)
     DO UPDATE SET
@@ -36,6 +37,7 @@ public interface DailyArticleSummaryRepository extends JpaRepository<DailyArticl
         article_title = EXCLUDED.article_title,
         model         = EXCLUDED.model,
         token_usage   = EXCLUDED.token_usage,
+        input_hash    = EXCLUDED.input_hash,
         updated_at    = NOW()
     """, nativeQuery = true)
     void upsertSummary(@Param("openId") String openId,
@@ -47,7 +49,18 @@ public interface DailyArticleSummaryRepository extends JpaRepository<DailyArticl
                        @Param("analyzeResult") String analyzeResult,
                        @Param("articleTitle") String articleTitle,
                        @Param("model") String model,
-                       @Param("tokenUsageJson") String tokenUsageJson);
+                       @Param("tokenUsageJson") String tokenUsageJson,
+                       @Param("inputHash") String inputHash);
+
+    /** 已存总结的输入指纹；无记录或旧数据没有指纹时为空 */
+    @Query(value = """
+        SELECT s.input_hash
+        FROM daily_article_summary s
+        WHERE s.open_id = :openId
+          AND s.summary_date = :summaryDate
+        """, nativeQuery = true)
+    Optional<String> findInputHash(@Param("openId") String openId,
+                                   @Param("summaryDate") LocalDate summaryDate);
 
     /** 判断是否存在记录 */
     boolean existsByOpenIdAndSummaryDate(String openId, LocalDate summaryDate);
@@ -64,6 +77,29 @@ public interface DailyArticleSummaryRepository extends JpaRepository<DailyArticl
             @Param("openId") String openId
     );
 
+    // ==============================
+    // 查询：最近 K 天的总结（只取拼 Agent 上下文要用的列）
+    // ==============================
+    @Query("""
+        SELECT e.summaryDate AS summaryDate,
+               e.articleTitle AS articleTitle,
+               e.article AS article,
+               e.moodKeywords AS moodKeywords,
+               e.actionKeywords AS actionKeywords
+        FROM DailyArticleSummaryEntity e
+        WHERE e.openId = :openId
+        ORDER BY e.summaryDate DESC
+        """)
+    List<PreSummaryView> findRecentPreSummaries(@Param("openId") String openId, Pageable pageable);
+
+    interface PreSummaryView {
+        LocalDate getSummaryDate();
+        String getArticleTitle();
+        String getArticle();
+        String getMoodKeywords();
+        String getActionKeywords();
+    }
+
     // ==============================
     // 查询：按 openId + 日期范围（含端点）
     // ==============================
@@ -119,6 +155,17 @@ public interface DailyArticleSummaryRepository extends JpaRepository<DailyArticl
             @Param("day") LocalDate day
     );
 
+    /** 同一天一批用户的总结（推送按批一次 IN 查询） */
+    @Query("""
+        SELECT e FROM DailyArticleSummaryEntity e
+        WHERE e.openId IN :openIds
+          AND e.summaryDate = :day
+        """)
+    List<DailyArticleSummaryEntity> findByOpenIdInAndSummaryDate(
+            @Param("openIds") Collection<String> openIds,
+            @Param("day") LocalDate day
+    );
+
     @Query("""
         SELECT COUNT(e) FROM DailyArticleSummaryEntity e
         WHERE e.openId = :openId
@@ -0,0 +1,72 @@
+package org.Memo.Repo;
+
+import org.Memo.Entity.DailyPartialDigest;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface DailyPartialDigestRepository extends JpaRepository<DailyPartialDigest, Long> {
+
+    /** 该会话在该日已覆盖到的消息时间；没有摘要时为空 */
+    @Query(value = """
+        SELECT d.covered_until
+        FROM daily_partial_digest d
+        WHERE d.session_id = :sid
+          AND d.summary_date = :summaryDate
+        """, nativeQuery = true)
+    Optional<Instant> findCoveredUntil(@Param("sid") UUID sessionId, @Param("summaryDate") LocalDate summaryDate);
+
+    /** 写入/覆盖会话当日摘要；只会向后推进 covered_until，晚到的旧结果不覆盖新摘要 */
+    @Modifying
+    @Transactional
+    @Query(value = """
+        INSERT INTO daily_partial_digest(open_id, summary_date, session_id, started_at, covered_until,
+                                         message_count, digest, created_at, updated_at)
+        VALUES (:openId, :summaryDate, :sid, :startedAt, :coveredUntil, :messageCount, :digest, NOW(), NOW())
+        ON CONFLICT (session_id, summary_date) DO UPDATE
+        SET started_at = EXCLUDED.started_at,
+            covered_until = EXCLUDED.covered_until,
+            message_count = EXCLUDED.message_count,
+            digest = EXCLUDED.digest,
+            updated_at = NOW()
+        WHERE daily_partial_digest.covered_until < EXCLUDED.covered_until
+        """, nativeQuery = true)
+    int upsertDigest(@Param("openId") String openId,
+                     @Param("summaryDate") LocalDate summaryDate,
+                     @Param("sid") UUID sessionId,
+                     @Param("startedAt") Instant startedAt,
+                     @Param("coveredUntil") Instant coveredUntil,
+                     @Param("messageCount") int messageCount,
+                     @Param("digest") String digest);
+
+    /**
+     * 空闲未关闭、且最后一条消息还没被摘要覆盖的会话（只看最近 lookback 内活跃过的）。
+     */
+    @Query(value = """
+        SELECT cr.session_id
+        FROM chat_record cr
+        WHERE cr.closed_at IS NULL
+          AND cr.last_ts < :idleBefore
+          AND cr.last_ts >= :since
+          AND cr.message_count >= :minMessages
+          AND NOT EXISTS (
+              SELECT 1 FROM daily_partial_digest d
+              WHERE d.session_id = cr.session_id
+                AND d.covered_until >= cr.last_ts
+          )
+        ORDER BY cr.last_ts ASC
+        LIMIT :limit
+        """, nativeQuery = true)
+    List<UUID> findIdleSessionsToDigest(@Param("idleBefore") Instant idleBefore,
+                                        @Param("since") Instant since,
+                                        @Param("minMessages") int minMessages,
+                                        @Param("limit") int limit);
+}
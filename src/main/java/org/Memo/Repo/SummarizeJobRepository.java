@@ -0,0 +1,230 @@
+package org.Memo.Repo;
+
+import org.Memo.Entity.SummarizeJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+public interface SummarizeJobRepository extends JpaRepository<SummarizeJob, Long> {
+
+    /** 登记一次运行；返回 1 表示本副本抢到了入队权，0 表示别的副本已经登记过 */
+    @Modifying
+    @Transactional
+    @Query(value = """
+        INSERT INTO summarize_run(run_key, owner, created_at)
+        VALUES (:runKey, :owner, NOW())
+        ON CONFLICT (run_key) DO NOTHING
+        """, nativeQuery = true)
+    int registerRun(@Param("runKey") String runKey, @Param("owner") String owner);
+
+    /**
+     * 把当日有会话活动、还没有总结的用户一次性入队；同一 (用户, 日期) 已有任务的不动。
+     * not_before = windowStart + 哈希位置 × 跨度，跨度 = min(用户数 / 每分钟速率, maxSpreadSeconds)；
+     * ratePerMinute <= 0 时摊满 maxSpreadSeconds。hashtext 只取决于 open_id，同一用户每天落在窗口里的位置一致。
+     */
+    @Modifying
+    @Transactional
+    @Query(value = """
+        WITH c AS (
+            SELECT DISTINCT cr.open_id
+            FROM chat_record cr
+            WHERE cr.last_ts >= :start
+              AND cr.started_at < :end
+              AND NOT EXISTS (
+                  SELECT 1 FROM daily_article_summary s
+                  WHERE s.open_id = cr.open_id
+                    AND s.summary_date = :summaryDate
+              )
+        ), n AS (
+            SELECT COUNT(*) AS cnt FROM c
+        )
+        INSERT INTO summarize_job(open_id, summary_date, run_key, recompute, force, status, attempts,
+                                  not_before, created_at, updated_at)
+        SELECT c.open_id, :summaryDate, :runKey, FALSE, FALSE, 'PENDING', 0,
+               CAST(:windowStart AS timestamptz) + make_interval(secs =>
+                   ((hashtext(c.open_id)::bigint & 2147483647) / 2147483648.0)
+                   * CASE WHEN :ratePerMinute > 0 THEN LEAST(:maxSpreadSeconds, n.cnt * 60.0 / :ratePerMinute)
+                          ELSE :maxSpreadSeconds END),
+               NOW(), NOW()
+        FROM c, n
+        ON CONFLICT (open_id, summary_date) DO NOTHING
+        """, nativeQuery = true)
+    int enqueueDay(@Param("summaryDate") LocalDate summaryDate,
+                   @Param("runKey") String runKey,
+                   @Param("start") Instant start,
+                   @Param("end") Instant end,
+                   @Param("windowStart") Instant windowStart,
+                   @Param("maxSpreadSeconds") long maxSpreadSeconds,
+                   @Param("ratePerMinute") int ratePerMinute);
+
+    /**
+     * 回填某一天：当天有会话活动的全部用户按重算模式入队。
+     * 已结束（DONE / FAILED）或仍在排队（PENDING）的同一 (用户, 日期) 任务改挂到本批次、按重算模式重新排队；
+     * 正在执行（RUNNING）的不动，也不计入返回值，调用方用 {@link #countDayCandidates} 算出跳过了多少。
+     */
+    @Modifying
+    @Transactional
+    @Query(value = """
+        INSERT INTO summarize_job(open_id, summary_date, run_key, recompute, force, status, attempts, created_at, updated_at)
+        SELECT DISTINCT cr.open_id, :summaryDate, :runKey, TRUE, :force, 'PENDING', 0, NOW(), NOW()
+        FROM chat_record cr
+        WHERE cr.last_ts >= :start
+          AND cr.started_at < :end
+        ON CONFLICT (open_id, summary_date) DO UPDATE
+        SET run_key = EXCLUDED.run_key,
+            recompute = TRUE,
+            force = EXCLUDED.force,
+            status = 'PENDING',
+            attempts = 0,
+            not_before = NULL,
+            lease_until = NULL,
+            locked_by = NULL,
+            last_error = NULL,
+            updated_at = NOW()
+        WHERE summarize_job.status <> 'RUNNING'
+        """, nativeQuery = true)
+    int enqueueBackfillDay(@Param("summaryDate") LocalDate summaryDate,
+                           @Param("runKey") String runKey,
+                           @Param("start") Instant start,
+                           @Param("end") Instant end,
+                           @Param("force") boolean force);
+
+    /** 某天有会话活动的用户数（与 enqueueBackfillDay 同口径） */
+    @Query(value = """
+        SELECT COUNT(DISTINCT cr.open_id)
+        FROM chat_record cr
+        WHERE cr.last_ts >= :start
+          AND cr.started_at < :end
+        """, nativeQuery = true)
+    long countDayCandidates(@Param("start") Instant start, @Param("end") Instant end);
+
+    /**
+     * 认领一批任务：已到 not_before 的 PENDING，或 RUNNING 但租约已过期的（持有者崩溃/卡死）；
+     * 按计划时间先后认领，落后时已到点的任务会被连续认领追赶。SKIP LOCKED 让多个副本并发认领互不阻塞、互不重复。
+     * runKey 非空时只认领该批次的任务。
+     */
+    @Transactional
+    @Query(value = """
+        UPDATE summarize_job j
+        SET status = 'RUNNING',
+            locked_by = :worker,
+            lease_until = NOW() + make_interval(secs => :leaseSeconds),
+            attempts = j.attempts + 1,
+            updated_at = NOW()
+        WHERE j.id IN (
+            SELECT c.id
+            FROM summarize_job c
+            WHERE ((c.status = 'PENDING' AND (c.not_before IS NULL OR c.not_before <= NOW()))
+                   OR (c.status = 'RUNNING' AND c.lease_until < NOW()))
+              AND c.attempts < :maxAttempts
+              AND (CAST(:runKey AS VARCHAR) IS NULL OR c.run_key = :runKey)
+            ORDER BY c.not_before NULLS FIRST, c.id
+            LIMIT :limit
+            FOR UPDATE SKIP LOCKED
+        )
+        RETURNING j.*
+        """, nativeQuery = true)
+    List<SummarizeJob> claim(@Param("worker") String worker,
+                             @Param("limit") int limit,
+                             @Param("leaseSeconds") long leaseSeconds,
+                             @Param("maxAttempts") int maxAttempts,
+                             @Param("runKey") String runKey);
+
+    /** 完成；只有仍持有租约的 worker 能改，避免过期后被别人接手的任务被旧持有者覆盖 */
+    @Modifying
+    @Transactional
+    @Query(value = """
+        UPDATE summarize_job
+        SET status = 'DONE', lease_until = NULL, last_error = NULL, updated_at = NOW()
+        WHERE id IN (:ids) AND locked_by = :worker AND status = 'RUNNING'
+        """, nativeQuery = true)
+    int markDone(@Param("ids") List<Long> ids, @Param("worker") String worker);
+
+    /**
+     * 失败：次数用尽记为 FAILED，否则回到 PENDING，not_before 推后 backoffSeconds * 2^(attempts-1)
+     * （最多翻 10 倍），避免持续失败的用户被紧接着反复认领、很快把次数耗光
+     */
+    @Modifying
+    @Transactional
+    @Query(value = """
+        UPDATE summarize_job
+        SET status = CASE WHEN attempts >= :maxAttempts THEN 'FAILED' ELSE 'PENDING' END,
+            not_before = CASE WHEN attempts >= :maxAttempts THEN not_before
+                              ELSE NOW() + make_interval(secs => :backoffSeconds * power(2, LEAST(GREATEST(attempts - 1, 0), 10)))
+                         END,
+            lease_until = NULL,
+            last_error = :error,
+            updated_at = NOW()
+        WHERE id IN (:ids) AND locked_by = :worker AND status = 'RUNNING'
+        """, nativeQuery = true)
+    int markFailed(@Param("ids") List<Long> ids, @Param("worker") String worker,
+                   @Param("error") String error, @Param("maxAttempts") int maxAttempts,
+                   @Param("backoffSeconds") long backoffSeconds);
+
+    /** 租约过期且次数已用尽的任务不会再被认领，直接记为 FAILED */
+    @Modifying
+    @Transactional
+    @Query(value = """
+        UPDATE summarize_job
+        SET status = 'FAILED', lease_until = NULL, last_error = COALESCE(last_error, 'lease expired'), updated_at = NOW()
+        WHERE status = 'RUNNING' AND lease_until < NOW() AND attempts >= :maxAttempts
+        """, nativeQuery = true)
+    int failExhausted(@Param("maxAttempts") int maxAttempts);
+
+    /** 已到点仍未被认领的任务中最早的计划时间落后了多少秒；没有时为空 */
+    @Query(value = """
+        SELECT EXTRACT(EPOCH FROM NOW() - MIN(j.not_before))
+        FROM summarize_job j
+        WHERE j.status = 'PENDING'
+          AND j.not_before <= NOW()
+        """, nativeQuery = true)
+    Optional<Double> findDueLagSeconds();
+
+    /** 尚未结束（PENDING / RUNNING）的任务数 */
+    @Query(value = """
+        SELECT COUNT(*) FROM summarize_job j WHERE j.status IN ('PENDING', 'RUNNING')
+        """, nativeQuery = true)
+    long countOpen();
+
+    /** 某批次各状态的任务数 */
+    @Query(value = """
+        SELECT j.status AS status, COUNT(*) AS cnt
+        FROM summarize_job j
+        WHERE j.run_key = :runKey
+        GROUP BY j.status
+        """, nativeQuery = true)
+    List<StatusCountView> countByStatus(@Param("runKey") String runKey);
+
+    interface StatusCountView {
+        String getStatus();
+        Long getCnt();
+    }
+
+    @Query(value = "SELECT r.created_at FROM summarize_run r WHERE r.run_key = :runKey", nativeQuery = true)
+    Optional<Instant> findRunCreatedAt(@Param("runKey") String runKey);
+
+    /** 记录回填时跳过的用户数，格式 "yyyy-MM-dd=n,..."（db/006） */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE summarize_run SET skipped_dates = :skippedDates WHERE run_key = :runKey", nativeQuery = true)
+    int recordSkippedDates(@Param("runKey") String runKey, @Param("skippedDates") String skippedDates);
+
+    @Query(value = "SELECT r.skipped_dates FROM summarize_run r WHERE r.run_key = :runKey", nativeQuery = true)
+    Optional<String> findRunSkippedDates(@Param("runKey") String runKey);
+
+    /** 还有未结束任务的批次（按前缀过滤，例如 backfill:） */
+    @Query(value = """
+        SELECT DISTINCT j.run_key
+        FROM summarize_job j
+        WHERE j.run_key LIKE CONCAT(:prefix, '%')
+          AND j.status IN ('PENDING', 'RUNNING')
+        """, nativeQuery = true)
+    List<String> findOpenRunKeys(@Param("prefix") String prefix);
+}
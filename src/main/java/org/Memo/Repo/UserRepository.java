@@ -6,6 +6,8 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
 import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 public interface UserRepository extends JpaRepository<User, Long> {
@@ -31,4 +33,7 @@ public interface UserRepository extends JpaRepository<User, Long> {
 
     Optional<User> findByUnionId(String unionId);
 
+    /** 批量按 unionId 取用户（推送按批一次 IN 查询） */
+    List<User> findByUnionIdIn(Collection<String> unionIds);
+
 }
\ No newline at end of file
@@ -142,10 +142,41 @@ public class WechatOfficialAccountClient {
             HttpEntity<String> request = new HttpEntity<>(body, headers);
 
             String resp = restTemplate.postForObject(url, request, String.class);
-            log.info("wechat mini subscribe msg sent, openId={}, resp={}", openId, resp);
+            int errcode = resp == null ? -1 : objectMapper.readTree(resp).path("errcode").asInt(0);
+            if (errcode != 0) {
+                throw new WechatApiException(errcode, resp);
+            }
+            log.debug("wechat mini subscribe msg sent, openId={}, resp={}", openId, resp);
+        } catch (WechatApiException e) {
+            log.warn("wechat mini subscribe msg rejected, openId={}, resp={}", openId, e.getMessage());
+            throw e;
         } catch (Exception e) {
             log.error("wechat mini subscribe msg send fail, openId={}", openId, e);
             throw new RuntimeException(e);
         }
     }
+
+    /** 微信接口返回了非 0 的 errcode；调用方按 errcode 决定是否刷新 token / 重试 */
+    public static class WechatApiException extends RuntimeException {
+        private final int errcode;
+
+        public WechatApiException(int errcode, String resp) {
+            super(resp);
+            this.errcode = errcode;
+        }
+
+        public int getErrcode() {
+            return errcode;
+        }
+
+        /** access_token 无效或过期 */
+        public boolean isTokenInvalid() {
+            return errcode == 40001 || errcode == 40014 || errcode == 42001;
+        }
+
+        /** 系统繁忙、调用频率或配额超限：稍后重试可能成功 */
+        public boolean isRetryable() {
+            return errcode == -1 || errcode == 45009 || errcode == 45011 || isTokenInvalid();
+        }
+    }
 }
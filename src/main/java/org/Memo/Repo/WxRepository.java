@@ -2,11 +2,17 @@ package org.Memo.Repo;
 
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 @Slf4j
 @Service
 public class WxRepository {
@@ -29,11 +35,33 @@ public class WxRepository {
     private final RestTemplate restTemplate = new RestTemplate();
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    /** 小程序 access_token 有效期 7200 秒，缓存时间要留出余量；单 key，同一时刻只有一个线程去换 */
+    private final Cache<String, String> miniTokenCache;
+
+    public WxRepository(@Value("${wx.token-cache-minutes:100}") long tokenCacheMinutes) {
+        this.miniTokenCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(tokenCacheMinutes, TimeUnit.MINUTES)
+                .build();
+    }
+
     /**
-     * 获取小程序 access_token
+     * 获取小程序 access_token（带缓存）
      * 仅用于：小程序订阅消息等小程序接口
      */
     public String getMiniProgramAccessToken() {
+        try {
+            return miniTokenCache.get("mini", this::fetchMiniProgramAccessToken);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+        }
+    }
+
+    /** 微信返回 token 无效/过期时调用，下次取 token 重新换 */
+    public void invalidateMiniProgramAccessToken() {
+        miniTokenCache.invalidateAll();
+    }
+
+    private String fetchMiniProgramAccessToken() {
 
         String url = "https://api.weixin.qq.com/cgi-bin/token"
                 + "?grant_type=client_credential"
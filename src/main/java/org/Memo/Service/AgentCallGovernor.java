@@ -0,0 +1,170 @@
+package org.Memo.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * 所有 Agent 调用共用的并发闸门（替代原先按 chat/summary 各自固定上限的限流）。
+ *
+ * 并发上限按 AIMD 自适应：调用成功且耗时在该通道阈值内时加性增长（每轮约 +1），
+ * 出错、超时或耗时超阈值时乘性下降；上限夹在 [min-limit, max-limit] 之间。
+ * 下降每轮最多一次：只有在上次下降之后才发出的调用拥塞才会再降，
+ * 同一波慢请求陆续返回时不会把上限连乘到底。客户端主动取消的调用不算拥塞。
+ *
+ * 两条优先级通道：INTERACTIVE（公众号/WS 对话）与 BATCH（每日总结、回填）。
+ * 有空位时先放行排队中的 INTERACTIVE；BATCH 在途数另受 batch-max-share 比例限制，
+ * 保证批量任务跑满时仍给在线对话留出余量。排队不占线程，超过队列上限直接拒绝。
+ */
+@Component
+public class AgentCallGovernor {
+
+    public enum Lane { INTERACTIVE, BATCH }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double batchMaxShare;
+    private final Map<Lane, Long> latencyThresholdNanos = new EnumMap<>(Lane.class);
+    private final Map<Lane, Integer> maxQueued = new EnumMap<>(Lane.class);
+
+    private final Map<Lane, ArrayDeque<Runnable>> waiting = new EnumMap<>(Lane.class);
+    private final Map<Lane, Integer> inFlight = new EnumMap<>(Lane.class);
+    private final Map<Lane, Counter> rejected = new EnumMap<>(Lane.class);
+    private double limit;
+    /** 上次乘性下降的时刻（nanoTime）；在它之前发出的调用不再触发下降 */
+    private long lastDecreaseNanos = System.nanoTime();
+
+    public AgentCallGovernor(@Value("${agent.governor.initial-limit:32}") int initialLimit,
+                             @Value("${agent.governor.min-limit:4}") int minLimit,
+                             @Value("${agent.governor.max-limit:128}") int maxLimit,
+                             @Value("${agent.governor.backoff-ratio:0.8}") double backoffRatio,
+                             @Value("${agent.governor.batch-max-share:0.5}") double batchMaxShare,
+                             @Value("${agent.governor.interactive.latency-threshold-ms:30000}") long interactiveLatencyMs,
+                             @Value("${agent.governor.batch.latency-threshold-ms:180000}") long batchLatencyMs,
+                             @Value("${agent.governor.interactive.max-queued:1000}") int interactiveMaxQueued,
+                             @Value("${agent.governor.batch.max-queued:100000}") int batchMaxQueued,
+                             MeterRegistry registry) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.batchMaxShare = batchMaxShare;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        latencyThresholdNanos.put(Lane.INTERACTIVE, interactiveLatencyMs * 1_000_000L);
+        latencyThresholdNanos.put(Lane.BATCH, batchLatencyMs * 1_000_000L);
+        maxQueued.put(Lane.INTERACTIVE, interactiveMaxQueued);
+        maxQueued.put(Lane.BATCH, batchMaxQueued);
+
+        Gauge.builder("agent.governor.limit", this, AgentCallGovernor::limit).register(registry);
+        for (Lane lane : Lane.values()) {
+            waiting.put(lane, new ArrayDeque<>());
+            inFlight.put(lane, 0);
+            String tag = lane.name().toLowerCase();
+            Gauge.builder("agent.governor.in_flight", this, g -> g.inFlight(lane)).tag("lane", tag).register(registry);
+            Gauge.builder("agent.governor.queued", this, g -> g.queued(lane)).tag("lane", tag).register(registry);
+            rejected.put(lane, Counter.builder("agent.governor.rejected").tag("lane", tag).register(registry));
+        }
+    }
+
+    /** 在该通道内按当前上限发起 call；返回的 future 与 call 的结果一致 */
+    public <T> CompletableFuture<T> submit(Lane lane, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable start = () -> {
+            long t0 = System.nanoTime();
+            CompletableFuture<T> f;
+            try {
+                f = call.get();
+            } catch (Throwable t) {
+                f = CompletableFuture.failedFuture(t);
+            }
+            f.whenComplete((r, e) -> {
+                release(lane, e, t0);
+                if (e != null) result.completeExceptionally(e);
+                else result.complete(r);
+            });
+        };
+
+        synchronized (this) {
+            if (waiting.get(lane).isEmpty() && admissible(lane)) {
+                inFlight.merge(lane, 1, Integer::sum);
+            } else if (waiting.get(lane).size() < maxQueued.get(lane)) {
+                waiting.get(lane).addLast(start);
+                return result;
+            } else {
+                rejected.get(lane).increment();
+                result.completeExceptionally(new RejectedExecutionException(
+                        "agent governor full, lane=" + lane + " limit=" + (int) limit + " queued=" + waiting.get(lane).size()));
+                return result;
+            }
+        }
+        start.run();
+        return result;
+    }
+
+    /** 调用结束：先按结果调整上限，再按优先级放行排队中的调用 */
+    private void release(Lane lane, Throwable error, long startNanos) {
+        long now = System.nanoTime();
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        List<Runnable> toStart = new ArrayList<>();
+        synchronized (this) {
+            inFlight.merge(lane, -1, Integer::sum);
+            // 出错（含超时）或耗时超过该通道阈值视为拥塞；被下游拒绝的、客户端取消的不算
+            boolean congested = (cause != null && !(cause instanceof RejectedExecutionException)
+                    && !(cause instanceof CancellationException))
+                    || now - startNanos > latencyThresholdNanos.get(lane);
+            if (congested) {
+                // 每轮只降一次：这次调用发出时上一次下降已经发生过，才说明降完之后仍然拥塞
+                if (startNanos - lastDecreaseNanos > 0) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastDecreaseNanos = now;
+                }
+            } else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            for (Lane l : Lane.values()) {   // INTERACTIVE 在前
+                ArrayDeque<Runnable> q = waiting.get(l);
+                while (!q.isEmpty() && admissible(l)) {
+                    inFlight.merge(l, 1, Integer::sum);
+                    toStart.add(q.pollFirst());
+                }
+            }
+        }
+        toStart.forEach(Runnable::run);
+    }
+
+    private boolean admissible(Lane lane) {
+        int total = inFlight.get(Lane.INTERACTIVE) + inFlight.get(Lane.BATCH);
+        if (total >= (int) limit) return false;
+        if (lane == Lane.BATCH) {
+            // BATCH 最多占上限的一定比例，但至少能跑 1 个
+            int batchCap = Math.max(1, (int) (limit * batchMaxShare));
+            return inFlight.get(Lane.BATCH) < batchCap;
+        }
+        return true;
+    }
+
+    public synchronized double limit() {
+        return limit;
+    }
+
+    public synchronized int inFlight(Lane lane) {
+        return inFlight.get(lane);
+    }
+
+    public synchronized int queued(Lane lane) {
+        return waiting.get(lane).size();
+    }
+}
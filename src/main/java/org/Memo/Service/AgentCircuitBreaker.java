@@ -0,0 +1,215 @@
+package org.Memo.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Agent 对话的熔断器：最近 window-size 次调用里失败率超过阈值就打开，打开期间直接失败，
+ * 调用方立刻走兜底回复，而不是每条消息都等满超时、把该用户的串行队列堵住。
+ * 打开 open-duration-ms 后进入半开，只放 half-open-probes 个探测请求：全部成功则关闭，任一失败重新打开。
+ * 本地闸门排队已满（RejectedExecutionException）和取消（对冲落败、客户端断开）不是 Agent 的问题，
+ * 既不算成功也不算失败，只归还半开探测名额，见 {@link #onCompletion}。
+ *
+ * 同时作为 actuator health 的 "agentCircuit" 组件暴露状态。Agent 不可用不代表本服务不可用，
+ * 所以始终报 UP，只在 details 里给出 state/failureRate，避免健康检查因为下游故障触发重启或回滚。
+ */
+@Slf4j
+@Component("agentCircuit")
+public class AgentCircuitBreaker implements HealthIndicator {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** 熔断打开时的快速失败 */
+    public static class OpenException extends RuntimeException {
+        public OpenException() {
+            super("agent circuit open");
+        }
+    }
+
+    private final boolean enabled;
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final long openDurationMs;
+    private final int halfOpenProbes;
+
+    /** 最近 windowSize 次调用结果的环形窗口（true = 失败） */
+    private final boolean[] window;
+    private int windowPos;
+    private int windowCount;
+    private int windowFailures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight;
+    private int probesSucceeded;
+
+    private final Counter shortCircuited;
+
+    public AgentCircuitBreaker(@Value("${agent.breaker.enabled:true}") boolean enabled,
+                               @Value("${agent.breaker.window-size:20}") int windowSize,
+                               @Value("${agent.breaker.min-calls:10}") int minCalls,
+                               @Value("${agent.breaker.failure-rate-threshold:0.5}") double failureRateThreshold,
+                               @Value("${agent.breaker.open-duration-ms:30000}") long openDurationMs,
+                               @Value("${agent.breaker.half-open-probes:1}") int halfOpenProbes,
+                               MeterRegistry registry) {
+        this.enabled = enabled;
+        this.windowSize = Math.max(1, windowSize);
+        this.minCalls = Math.max(1, Math.min(minCalls, this.windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDurationMs = openDurationMs;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        this.window = new boolean[this.windowSize];
+        Gauge.builder("agent.breaker.state", this, b -> b.state().ordinal())
+                .description("0=CLOSED 1=OPEN 2=HALF_OPEN")
+                .register(registry);
+        this.shortCircuited = Counter.builder("agent.breaker.short_circuited").register(registry);
+    }
+
+    /** 经熔断器发起调用：不放行时返回以 OpenException 失败的 future */
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call) {
+        if (!tryAcquire()) {
+            return CompletableFuture.failedFuture(new OpenException());
+        }
+        CompletableFuture<T> f;
+        try {
+            f = call.get();
+        } catch (Throwable t) {
+            f = CompletableFuture.failedFuture(t);
+        }
+        return f.whenComplete((r, e) -> onCompletion(e));
+    }
+
+    /** 是否放行一次调用；放行后必须以 {@link #onCompletion} 回报结果 */
+    public synchronized boolean tryAcquire() {
+        if (!enabled) return true;
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDurationMs) {
+                shortCircuited.increment();
+                return false;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight + probesSucceeded >= halfOpenProbes) {
+                shortCircuited.increment();
+                return false;
+            }
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    /** 按调用的异常归类回报：null 为成功，本地拒绝/取消不计入，其余算失败；CompletionException/ExecutionException 先拆开 */
+    public void onCompletion(Throwable error) {
+        Throwable cause = unwrap(error);
+        if (isNeutral(cause)) {
+            release();
+        } else {
+            onResult(cause == null);
+        }
+    }
+
+    /** 本地过载拒绝或取消：与 Agent 是否健康无关 */
+    public static boolean isNeutral(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause instanceof RejectedExecutionException || cause instanceof CancellationException;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /** 放行过但不计结果：半开时归还探测名额 */
+    private synchronized void release() {
+        if (enabled && state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+        }
+    }
+
+    public synchronized void onResult(boolean success) {
+        if (!enabled) return;
+        switch (state) {
+            case HALF_OPEN -> {
+                probesInFlight = Math.max(0, probesInFlight - 1);
+                if (!success) {
+                    open();
+                } else if (++probesSucceeded >= halfOpenProbes) {
+                    transition(State.CLOSED);
+                }
+            }
+            case CLOSED -> {
+                record(!success);
+                if (windowCount >= minCalls && (double) windowFailures / windowCount >= failureRateThreshold) {
+                    open();
+                }
+            }
+            case OPEN -> { /* 打开前已发出的调用，结果不再计入 */ }
+        }
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    @Override
+    public Health health() {
+        synchronized (this) {
+            return Health.up()
+                    .withDetail("state", state.name())
+                    .withDetail("failureRate", windowCount == 0 ? 0.0 : (double) windowFailures / windowCount)
+                    .withDetail("calls", windowCount)
+                    .build();
+        }
+    }
+
+    private void record(boolean failed) {
+        if (windowCount == windowSize) {
+            if (window[windowPos]) windowFailures--;
+        } else {
+            windowCount++;
+        }
+        window[windowPos] = failed;
+        if (failed) windowFailures++;
+        windowPos = (windowPos + 1) % windowSize;
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transition(State.OPEN);
+    }
+
+    private void transition(State next) {
+        if (state == next) return;
+        log.warn("agent circuit {} -> {} (failures={}/{})", state, next, windowFailures, windowCount);
+        state = next;
+        probesInFlight = 0;
+        probesSucceeded = 0;
+        if (next == State.CLOSED) {
+            windowPos = 0;
+            windowCount = 0;
+            windowFailures = 0;
+        }
+    }
+}
@@ -5,11 +5,34 @@ import org.Memo.DTO.SummaryModel;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface AgentClient {
     String chat(String userId, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary, HashMap<String, String> args);
 
     String chatWs(String userId, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary);
 
+    /**
+     * 流式对话：Agent 每推一帧就回调 onDelta（增量文本），流结束后 completion 带完整回复完成。
+     * 结束标志：Agent 发 {"type":"end"} / {"done":true} 帧，或主动关闭连接。
+     */
+    AgentStream chatStream(String userId, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary, Consumer<String> onDelta);
+
     SummarizeResult summarizeDay(String userId, String packedText);
+
+    // ===== 异步版：在 OkHttp 回调线程上完成，不为等待中的调用占用线程；在途数受 agent.async.* 上限约束 =====
+
+    CompletableFuture<String> chatAsync(String userId, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary, HashMap<String, String> args);
+
+    CompletableFuture<String> chatWsAsync(String userId, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary);
+
+    CompletableFuture<SummarizeResult> summarizeDayAsync(String userId, String packedText);
+
+    /**
+     * 多用户批量总结：key 为 unionId、value 为当日打包文本；返回每个用户各自的 future，
+     * 某个用户失败只影响他自己。Agent 不支持批量时内部退回逐个调用。
+     */
+    Map<String, CompletableFuture<SummarizeResult>> summarizeDayBatchAsync(Map<String, String> packedByUser);
 }
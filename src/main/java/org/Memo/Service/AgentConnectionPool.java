@@ -0,0 +1,223 @@
+package org.Memo.Service;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 到 Agent 的长连接池（可选，默认关闭）：固定 N 条 WebSocket 常驻，请求复用连接，省掉每次对话的握手。
+ *
+ * 多路复用约定：发出的请求 JSON 里带 requestId，Agent 回复的帧里原样带回，按 requestId 找到对应请求；
+ * 每个请求只取第一帧回复（与逐次建连时的 sendAndWaitOnce 语义一致）。
+ * 心跳交给 OkHttp 的 pingInterval，收不到 pong 会触发 onFailure；断线后按指数退避重连，
+ * 断开时该连接上未完成的请求全部失败。每条连接有在途上限，所有连接都满或都未连上时 submit 返回 null，
+ * 由调用方退回逐次建连。
+ */
+@Slf4j
+@Component
+public class AgentConnectionPool {
+
+    @Value("${agent.ws.pool.enabled:false}")
+    private boolean enabled;
+
+    @Value("${agent.ws.pool.url:${agent.url}}")
+    private String url;
+
+    @Value("${agent.ws.pool.size:4}")
+    private int size;
+
+    @Value("${agent.ws.pool.max-in-flight-per-connection:16}")
+    private int maxInFlightPerConnection;
+
+    @Value("${agent.ws.pool.ping-interval-seconds:20}")
+    private long pingIntervalSeconds;
+
+    @Value("${agent.ws.pool.reconnect-backoff-min-ms:500}")
+    private long backoffMinMs;
+
+    @Value("${agent.ws.pool.reconnect-backoff-max-ms:30000}")
+    private long backoffMaxMs;
+
+    private final MeterRegistry registry;
+    private final List<Connection> connections = new ArrayList<>();
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "agent-ws-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private OkHttpClient client;
+    private volatile boolean stopped;
+    private Counter reconnects;
+    private Counter saturated;
+
+    public AgentConnectionPool(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @PostConstruct
+    void start() {
+        if (!enabled) return;
+        client = new OkHttpClient.Builder()
+                .connectTimeout(5, TimeUnit.SECONDS)
+                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .pingInterval(pingIntervalSeconds, TimeUnit.SECONDS)
+                .build();
+        reconnects = Counter.builder("agent.ws.pool.reconnects").register(registry);
+        saturated = Counter.builder("agent.ws.pool.saturated").description("无可用连接、退回逐次建连的请求数").register(registry);
+        Gauge.builder("agent.ws.pool.connected", connections, cs -> cs.stream().filter(c -> c.ws != null).count())
+                .register(registry);
+        Gauge.builder("agent.ws.pool.in_flight", connections, cs -> cs.stream().mapToInt(c -> c.inflight.size()).sum())
+                .register(registry);
+
+        for (int i = 0; i < Math.max(1, size); i++) {
+            Connection c = new Connection(i);
+            connections.add(c);
+            c.connect();
+        }
+        log.info("agent ws pool started url={} size={} maxInFlightPerConnection={}", url, size, maxInFlightPerConnection);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 在某条空闲连接上发出请求；返回的 future 以该请求的第一帧回复完成。
+     * 没有已连上且未满的连接时返回 null。
+     */
+    public CompletableFuture<String> submit(String payload, long timeoutSeconds) {
+        if (!enabled || stopped) return null;
+        int n = connections.size();
+        int start = Math.floorMod(cursor.getAndIncrement(), n);
+        for (int i = 0; i < n; i++) {
+            Connection c = connections.get((start + i) % n);
+            if (c.ws != null && c.permits.tryAcquire()) {
+                return c.send(payload, timeoutSeconds);
+            }
+        }
+        saturated.increment();
+        return null;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        stopped = true;
+        reconnector.shutdownNow();
+        for (Connection c : connections) {
+            WebSocket ws = c.ws;
+            if (ws != null) ws.close(1001, "shutdown");
+            c.failAll(new IOException("agent ws pool shutdown"));
+        }
+    }
+
+    private final class Connection {
+        private final int index;
+        private final Semaphore permits = new Semaphore(maxInFlightPerConnection);
+        private final ConcurrentHashMap<String, CompletableFuture<String>> inflight = new ConcurrentHashMap<>();
+        /** 已握手成功的连接；未连上或已断开时为 null */
+        private volatile WebSocket ws;
+        private long backoffMs = backoffMinMs;
+
+        private Connection(int index) {
+            this.index = index;
+        }
+
+        private void connect() {
+            if (stopped) return;
+            client.newWebSocket(new Request.Builder().url(url).build(), new WebSocketListener() {
+                @Override public void onOpen(WebSocket webSocket, Response response) {
+                    ws = webSocket;
+                    backoffMs = backoffMinMs;
+                    log.info("agent ws pool conn#{} connected", index);
+                }
+                @Override public void onMessage(WebSocket webSocket, String text) {
+                    route(text);
+                }
+                @Override public void onClosing(WebSocket webSocket, int code, String reason) {
+                    webSocket.close(1000, null);
+                }
+                @Override public void onClosed(WebSocket webSocket, int code, String reason) {
+                    disconnected(new IOException("agent ws closed code=" + code + " reason=" + reason));
+                }
+                @Override public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+                    disconnected(t);
+                }
+            });
+        }
+
+        private CompletableFuture<String> send(String payload, long timeoutSeconds) {
+            String requestId = UUID.randomUUID().toString();
+            CompletableFuture<String> f = new CompletableFuture<>();
+            inflight.put(requestId, f);
+            f.orTimeout(timeoutSeconds, TimeUnit.SECONDS).whenComplete((r, e) -> {
+                inflight.remove(requestId);
+                permits.release();
+            });
+
+            JSONObject body = JSON.parseObject(payload);
+            body.put("requestId", requestId);
+            WebSocket current = ws;
+            if (current == null || !current.send(body.toJSONString())) {
+                f.completeExceptionally(new IOException("agent ws conn#" + index + " not writable"));
+            }
+            return f;
+        }
+
+        private void route(String text) {
+            String requestId = null;
+            try {
+                JSONObject frame = JSON.parseObject(text);
+                if (frame != null) requestId = frame.getString("requestId");
+            } catch (Exception ignore) {
+                // 非 JSON 帧无法关联请求
+            }
+            CompletableFuture<String> f = requestId == null ? null : inflight.get(requestId);
+            if (f == null) {
+                log.warn("agent ws pool conn#{} unmatched frame requestId={}", index, requestId);
+                return;
+            }
+            f.complete(text);
+        }
+
+        private void disconnected(Throwable cause) {
+            ws = null;
+            failAll(cause);
+            if (stopped) return;
+            long delay = backoffMs;
+            backoffMs = Math.min(backoffMs * 2, backoffMaxMs);
+            reconnects.increment();
+            log.warn("agent ws pool conn#{} disconnected, reconnect in {}ms cause={}", index, delay, cause.toString());
+            reconnector.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void failAll(Throwable cause) {
+            inflight.values().forEach(f -> f.completeExceptionally(cause));
+        }
+    }
+}
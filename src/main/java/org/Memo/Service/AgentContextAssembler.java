@@ -0,0 +1,144 @@
+package org.Memo.Service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.Memo.DTO.SummaryModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 按字符预算裁剪发给 Agent 的上下文。
+ *
+ * 规则（确定性，同样输入总得到同样输出）：
+ *  1) 历史总结先占用 summary-share 比例的预算，从最新一天往前取，放不下的整条丢弃；
+ *  2) 剩余预算全部给聊天记录，从最新一条往前取，放不下的整条丢弃；
+ *  3) 最新的那一条单独就超预算时截断保留开头，保证至少带上最近的上下文。
+ */
+@Slf4j
+@Component
+public class AgentContextAssembler {
+
+    private final int maxChars;
+    private final double summaryShare;
+
+    private final DistributionSummary payloadChars;
+    private final DistributionSummary droppedMessages;
+    private final DistributionSummary droppedSummaries;
+    private final DistributionSummary droppedChars;
+
+    public AgentContextAssembler(@Value("${agent.context.max-chars:24000}") int maxChars,
+                                 @Value("${agent.context.summary-share:0.4}") double summaryShare,
+                                 MeterRegistry registry) {
+        this.maxChars = Math.max(1, maxChars);
+        this.summaryShare = Math.min(1.0, Math.max(0.0, summaryShare));
+        this.payloadChars = DistributionSummary.builder("agent.context.chars").register(registry);
+        this.droppedMessages = DistributionSummary.builder("agent.context.dropped_messages").register(registry);
+        this.droppedSummaries = DistributionSummary.builder("agent.context.dropped_summaries").register(registry);
+        this.droppedChars = DistributionSummary.builder("agent.context.dropped_chars").register(registry);
+    }
+
+    /**
+     * @param preChat    聊天记录，时间正序（最新在最后）
+     * @param preSummary 历史总结，日期倒序（最新在最前）
+     */
+    public Assembled assemble(List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preSummary) {
+        List<ChatRecordService.MsgItem> chat = preChat == null ? List.of() : preChat;
+        List<SummaryModel> summaries = preSummary == null ? List.of() : preSummary;
+
+        int summaryBudget = (int) (maxChars * summaryShare);
+        List<SummaryModel> keptSummaries = new ArrayList<>();
+        int used = 0;
+        int dropChars = 0;
+        for (SummaryModel s : summaries) {
+            int size = sizeOf(s);
+            if (used + size <= summaryBudget) {
+                keptSummaries.add(s);
+                used += size;
+            } else if (keptSummaries.isEmpty() && summaryBudget - used > 0) {
+                SummaryModel cut = truncate(s, summaryBudget - used);
+                keptSummaries.add(cut);
+                dropChars += size - sizeOf(cut);
+                used += sizeOf(cut);
+            } else {
+                dropChars += size;
+            }
+        }
+
+        int chatBudget = maxChars - used;
+        List<ChatRecordService.MsgItem> keptChat = new ArrayList<>();
+        int chatUsed = 0;
+        for (int i = chat.size() - 1; i >= 0; i--) {
+            ChatRecordService.MsgItem m = chat.get(i);
+            int size = sizeOf(m);
+            if (chatUsed + size <= chatBudget) {
+                keptChat.add(m);
+                chatUsed += size;
+            } else if (keptChat.isEmpty() && chatBudget > 0) {
+                ChatRecordService.MsgItem cut = truncate(m, chatBudget);
+                keptChat.add(cut);
+                dropChars += size - sizeOf(cut);
+                chatUsed += sizeOf(cut);
+            } else {
+                // 更早的消息一律丢弃，保证留下的是连续的最近一段
+                for (int j = i; j >= 0; j--) dropChars += sizeOf(chat.get(j));
+                break;
+            }
+        }
+        Collections.reverse(keptChat);
+
+        Assembled result = new Assembled(keptChat, keptSummaries,
+                chat.size() - keptChat.size(), summaries.size() - keptSummaries.size(), dropChars, used + chatUsed);
+        payloadChars.record(result.chars());
+        droppedMessages.record(result.droppedMessages());
+        droppedSummaries.record(result.droppedSummaries());
+        droppedChars.record(result.droppedChars());
+        return result;
+    }
+
+    private static int sizeOf(ChatRecordService.MsgItem m) {
+        return len(m.content()) + len(m.role()) + len(m.ts());
+    }
+
+    private static int sizeOf(SummaryModel s) {
+        return len(s.getArticle()) + len(s.getArticleTitle()) + len(s.getMoodKeywords()) + len(s.getActionKeywords());
+    }
+
+    private static ChatRecordService.MsgItem truncate(ChatRecordService.MsgItem m, int budget) {
+        int keep = Math.max(0, budget - len(m.role()) - len(m.ts()));
+        String content = m.content() == null ? "" : m.content();
+        return new ChatRecordService.MsgItem(m.seq(), m.ts(), m.role(), content.substring(0, Math.min(keep, content.length())));
+    }
+
+    private static SummaryModel truncate(SummaryModel s, int budget) {
+        int keep = Math.max(0, budget - len(s.getArticleTitle()) - len(s.getMoodKeywords()) - len(s.getActionKeywords()));
+        String article = s.getArticle() == null ? "" : s.getArticle();
+        return SummaryModel.builder()
+                .articleId(s.getArticleId())
+                .articleTitle(s.getArticleTitle())
+                .article(article.substring(0, Math.min(keep, article.length())))
+                .moodKeywords(s.getMoodKeywords())
+                .actionKeywords(s.getActionKeywords())
+                .creatTime(s.getCreatTime())
+                .year(s.getYear())
+                .month(s.getMonth())
+                .date(s.getDate())
+                .summaryType(s.getSummaryType())
+                .build();
+    }
+
+    private static int len(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    public record Assembled(List<ChatRecordService.MsgItem> preChat,
+                            List<SummaryModel> preDailySummary,
+                            int droppedMessages,
+                            int droppedSummaries,
+                            int droppedChars,
+                            int chars) {}
+}
@@ -0,0 +1,33 @@
+package org.Memo.Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * 一次流式对话的句柄：completion 在流结束时带完整回复完成；
+ * cancel 用于客户端断开时中止 Agent 侧生成，partial 取已经收到的部分。
+ */
+public final class AgentStream {
+
+    private final CompletableFuture<String> completion;
+    private final Runnable canceller;
+    private final Supplier<String> partial;
+
+    public AgentStream(CompletableFuture<String> completion, Runnable canceller, Supplier<String> partial) {
+        this.completion = completion;
+        this.canceller = canceller;
+        this.partial = partial;
+    }
+
+    public CompletableFuture<String> completion() {
+        return completion;
+    }
+
+    public void cancel() {
+        canceller.run();
+    }
+
+    public String partial() {
+        return partial.get();
+    }
+}
@@ -1,12 +1,15 @@
 package org.Memo.Service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.Memo.Entity.ChatMessage;
 import org.Memo.Entity.ChatRecord;
+import org.Memo.Repo.ChatMessageCursor;
+import org.Memo.Repo.ChatMessageRepository;
 import org.Memo.Repo.ChatRecordRepository;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -14,10 +17,12 @@ import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 @Service
 @RequiredArgsConstructor
@@ -26,21 +31,30 @@ public class ChatRecordService {
 
     @Value("${app.tz}") private String tz;
 
+    @Value("${app.chat.context.max-messages:200}") private int contextMaxMessages;
+
     private final ChatRecordRepository repo;
-    private final ObjectMapper om = new ObjectMapper();
-
-    // 同一 openid 串行：避免同一行并发追加导致乐观锁重试
-    private final ConcurrentHashMap<String, ExecutorService> executors = new ConcurrentHashMap<>();
-
-    public ExecutorService executorFor(String openid) {
-        return executors.computeIfAbsent(openid, k ->
-                Executors.newSingleThreadExecutor(r -> {
-                    Thread t = new Thread(r);
-                    t.setDaemon(true);
-                    t.setName("ws-jsonb-" + k);
-                    return t;
-                })
-        );
+    private final ChatMessageRepository messageRepo;
+    private final ChatMessageCursor messageCursor;
+    private final KeyedSerialExecutor serialExecutor;
+    private final ChatWriteBehindBuffer writeBehind;
+    private final RecentContextCache contextCache;
+    private final ApplicationEventPublisher events;
+    private final EntityManager entityManager;
+
+    // 同一 openid 串行：避免同一行并发追加导致乐观锁重试（共享线程 + 按 key 排队，空闲即回收）
+    public Executor executorFor(String openid) {
+        return serialExecutor.forKey(openid);
+    }
+
+    /** 同一 openid 串行的异步任务：返回的 future 完成前，该用户的下一条消息不会开始处理 */
+    public <T> CompletableFuture<T> submitSerial(String openid, Supplier<CompletableFuture<T>> task) {
+        return serialExecutor.submitAsync(openid, task);
+    }
+
+    /** Agent 回调之后的落库/推送切到这里执行，不阻塞 OkHttp 的 I/O 线程 */
+    public Executor callbackExecutor() {
+        return serialExecutor.callbackExecutor();
     }
 
     @Transactional
@@ -57,75 +71,96 @@ public class ChatRecordService {
     }
 
     /**
-     * 追加一条消息（乐观锁一次重试）
+     * 追加一条消息：一条语句完成会话头计数 +1 与 chat_message 插入，seq 在库里分配，不回读会话。
+     * 开启 write-behind 时改为入缓冲合并写；ASYNC 持久性下尚未落库，返回 null（需要计数的调用方用 {@link #appendAsync}）。
+     * 不检查会话是否已关闭：客户端断开后被取消的流式回复会追加进刚关闭的会话，调用方不应再对已关闭的会话做轮换。
      */
-    @Transactional
-    public void append(UUID sessionId, String role, String content, Instant ts) {
-        // 读当前版本 & 计算 seq
-        ChatRecord cr = repo.findBySessionId(sessionId)
-                .orElseThrow(() -> new IllegalStateException("session not found: " + sessionId));
-        long ver = cr.getVersion() == null ? 0L : cr.getVersion();
-        int nextSeq = (cr.getMessageCount() == null ? 0 : cr.getMessageCount()) + 1;
-
-        String itemJson;
-        try {
-            itemJson = om.writeValueAsString(new MsgItem(nextSeq, ts.toString(), role, content));
-        } catch (Exception e) {
-            throw new IllegalStateException("serialize item failed", e);
-        }
+    public AppendResult append(String openid, UUID sessionId, String role, String content, Instant ts) {
+        CompletableFuture<AppendResult> written = appendAsync(openid, sessionId, role, content, ts);
+        return written.isDone() ? written.join() : null;
+    }
 
-        int updated = repo.appendMessage(sessionId, itemJson, ts, ver);
-        if (updated == 0) {
-            // 乐观锁重试一次
-            ChatRecord latest = repo.findBySessionId(sessionId)
-                    .orElseThrow(() -> new IllegalStateException("session not found: " + sessionId));
-            long ver2 = latest.getVersion();
-            int nextSeq2 = (latest.getMessageCount() == null ? 0 : latest.getMessageCount()) + 1;
-            try {
-                itemJson = om.writeValueAsString(new MsgItem(nextSeq2, ts.toString(), role, content));
-            } catch (Exception ignore) {}
-            int updated2 = repo.appendMessage(sessionId, itemJson, ts, ver2);
-            if (updated2 == 0) {
-                throw new IllegalStateException("append conflict twice, give up");
+    /**
+     * 同 {@link #append}，返回的 future 在消息落库后带着 seq 与会话最新计数完成；
+     * 直写与 GROUP_COMMIT 下返回时通常已完成，ASYNC（以及 GROUP_COMMIT 等超时但可能已提交）时在所在批次提交后完成
+     * （可能在 write-behind 的 flusher 线程上）。
+     * 落库后才进该用户的最近上下文缓存，缓存里的 seq 都是库里分配的真实值。
+     */
+    public CompletableFuture<AppendResult> appendAsync(String openid, UUID sessionId, String role, String content, Instant ts) {
+        CompletableFuture<AppendResult> written;
+        if (!writeBehind.isEnabled()) {
+            written = CompletableFuture.completedFuture(messageRepo.appendMessage(sessionId, ts, role, content)
+                    .map(AppendResult::of)
+                    .orElseThrow(() -> new IllegalStateException("session not found: " + sessionId)));
+        } else {
+            written = writeBehind.enqueue(sessionId, role, content, ts);
+            if (writeBehind.durability() == ChatWriteBehindBuffer.Durability.GROUP_COMMIT) {
+                // 超时但可能已提交时不报错，future 仍会在提交后完成
+                writeBehind.awaitCommit(sessionId, written);
             }
         }
+        return written.thenApply(result -> {
+            contextCache.append(openid, new MsgItem(result.seq(), ts.toString(), role, content));
+            return result;
+        });
     }
 
+    /** 关闭会话：直接 UPDATE，不加载实体，避免和并发 append 抢 @Version；真正关闭了才发布 ChatSessionClosedEvent */
     @Transactional
     public void close(UUID sessionId, Instant now) {
-        repo.findBySessionId(sessionId).ifPresent(r -> {
-            r.setClosedAt(now);
-            repo.save(r);
-        });
+        if (repo.closeSession(sessionId, now) > 0) {
+            events.publishEvent(new ChatSessionClosedEvent(sessionId, now));
+        }
     }
 
-    // 简单的消息结构（用于序列化到 msgs）
+    // 简单的消息结构（Agent 上下文 / 旧版 msgs 解析用）
     public record MsgItem(int seq, String ts, String role, String content) {}
     public record MsgItemsSimple(String ts, String content) {}
 
+    /** 追加结果：本条消息的 seq、追加后的会话消息数与版本号 */
+    public record AppendResult(int seq, int messageCount, long version) {
+        static AppendResult of(ChatMessageRepository.AppendResultView v) {
+            return new AppendResult(v.getSeq(), v.getMessageCount(), v.getVersion());
+        }
+    }
+
+    /** 最近的聊天上下文：该用户最近 N 条消息（跨会话），按时间正序；优先走内存环形缓冲 */
     public List<MsgItem> getPreChatByUnionIdAndDay(String unionId) {
-        List<MsgItem> result = new ArrayList<>();
-        List<ChatRecord> records = repo.findByUnionIdLimit100(unionId);
-        if (records == null || records.isEmpty()) return result;
-        for (ChatRecord record : records) {
-            String msgs = record.getMsgs();
-            List<MsgItem> msgItems = parseMsgs(msgs);
-            result.addAll(msgItems);
+        return contextCache.get(unionId, () -> loadRecent(unionId));
+    }
+
+    private List<MsgItem> loadRecent(String unionId) {
+        List<ChatMessage> recent = messageRepo.findRecentByOpenId(unionId, contextMaxMessages);
+        if (recent == null || recent.isEmpty()) return new ArrayList<>();
+        List<MsgItem> result = new ArrayList<>(recent.size());
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            result.add(toMsgItem(recent.get(i)));
         }
-        Collections.reverse(result);
         return result;
     }
 
-    public List<MsgItem> parseMsgs(String msgs) {
-        if (msgs == null || msgs.isBlank()) {
-            return Collections.emptyList();
-        }
-        try {
-            return new ObjectMapper().readValue(msgs, new TypeReference<List<MsgItem>>() {});
-        } catch (Exception e) {
-            log.info("Failed to parse MsgItem list", e);
-            return Collections.emptyList();
-        }
+    /**
+     * 游标扫描当日消息（按 open_id 有序，已被局部摘要覆盖的消息以摘要行代替）；openIds 为 null 时扫全部用户。
+     * handler 在扫描线程上同步执行，但整个扫描占着一个连接和一个只读快照，handler 里不要等 Agent 这类慢操作；
+     * 大批量时由调用方按用户分页，每页一次调用。
+     * 游标行本身不进持久化上下文；但整个扫描是一个长事务，handler 在这个线程上经 JPA 读到的实体会一直留到事务结束，
+     * 所以每换一个用户清一次持久化上下文（只读事务，没有待刷新的修改）。
+     */
+    @Transactional(readOnly = true)
+    public void scanDayMessages(Instant start, Instant end, LocalDate summaryDate, Collection<String> openIds,
+                                boolean skipSummarized, ChatMessageCursor.RowHandler handler) {
+        String[] current = {null};
+        messageCursor.scanDay(start, end, summaryDate, openIds, skipSummarized, (rowOpenId, ts, role, content) -> {
+            if (current[0] != null && !current[0].equals(rowOpenId)) {
+                entityManager.clear();
+            }
+            current[0] = rowOpenId;
+            handler.row(rowOpenId, ts, role, content);
+        });
+    }
+
+    private static MsgItem toMsgItem(ChatMessage m) {
+        return new MsgItem(m.getSeq(), m.getTs().toString(), m.getRole(), m.getContent());
     }
 
 
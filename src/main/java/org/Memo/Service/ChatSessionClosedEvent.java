@@ -0,0 +1,7 @@
+package org.Memo.Service;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/** 会话已关闭（显式关闭、连接断开或空闲超时），由 ChatRecordService.close 在实际关闭一行后发布 */
+public record ChatSessionClosedEvent(UUID sessionId, Instant closedAt) {}
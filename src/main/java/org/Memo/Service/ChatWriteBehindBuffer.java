@@ -0,0 +1,310 @@
+package org.Memo.Service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.Memo.Repo.ChatMessageRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 聊天消息追加的 write-behind 缓冲（可选，默认关闭）。
+ *
+ * append 先按 sessionId 攒在内存里，由单个 flusher 线程按时间窗口/条数阈值/停机三种时机落库：
+ * 同一会话一批消息合并成一条语句（会话头计数 +n、chat_message 批量插入），每个会话单独一个事务提交，
+ * 一个会话失败不会连累同一窗口里的其它会话；失败的会话整段放回缓冲头部，下个窗口重试，
+ * 超过 max-attempts 次才让这些消息失败（会话不存在这类重试也没用的直接失败）。
+ *
+ * 持久性语义（app.chat.write-behind.durability）：
+ *  - GROUP_COMMIT：append 等到所在批次提交后才返回，崩溃不丢已返回的消息，只是多了最多一个窗口的延迟；
+ *    等超时的消息还没被 flush 取走就撤回（报失败，确定没写），已在提交中则按“可能已提交”处理、不报失败；
+ *  - ASYNC：append 入队即返回，进程崩溃会丢掉最后一个窗口内的消息，换最低的调用延迟。
+ */
+@Slf4j
+@Component
+public class ChatWriteBehindBuffer {
+
+    public enum Durability { ASYNC, GROUP_COMMIT }
+
+    private final ChatMessageRepository repo;
+    private final TransactionTemplate tx;
+    private final ObjectMapper om = new ObjectMapper();
+
+    @Value("${app.chat.write-behind.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.chat.write-behind.durability:GROUP_COMMIT}")
+    private Durability durability;
+
+    @Value("${app.chat.write-behind.flush-interval-ms:50}")
+    private long flushIntervalMs;
+
+    /** 缓冲中的消息条数达到该值立即触发一次 flush */
+    @Value("${app.chat.write-behind.max-batch:256}")
+    private int maxBatch;
+
+    /** GROUP_COMMIT 下调用方最多等多久 */
+    @Value("${app.chat.write-behind.commit-timeout-ms:5000}")
+    private long commitTimeoutMs;
+
+    /** 单个会话的批次最多提交几次（含首次），之后让这批消息失败 */
+    @Value("${app.chat.write-behind.max-attempts:3}")
+    private int maxAttempts;
+
+    private final Object lock = new Object();
+    /** sessionId -> 待写消息（按 append 顺序）；插入顺序即 flush 顺序 */
+    private Map<UUID, List<Pending>> pending = new LinkedHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-write-behind");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Counter appended;
+    private final Counter failed;
+    private final Counter retried;
+    private final Timer flushTimer;
+    private final DistributionSummary batchSize;
+    private final DistributionSummary statementsPerFlush;
+
+    public ChatWriteBehindBuffer(ChatMessageRepository repo, TransactionTemplate tx, MeterRegistry registry) {
+        this.repo = repo;
+        this.tx = tx;
+        this.appended = Counter.builder("chat.writebehind.appended").register(registry);
+        this.failed = Counter.builder("chat.writebehind.failed").register(registry);
+        this.retried = Counter.builder("chat.writebehind.retried").register(registry);
+        this.flushTimer = Timer.builder("chat.writebehind.flush").register(registry);
+        this.batchSize = DistributionSummary.builder("chat.writebehind.batch_messages").register(registry);
+        this.statementsPerFlush = DistributionSummary.builder("chat.writebehind.batch_sessions").register(registry);
+        Gauge.builder("chat.writebehind.pending", pendingCount, AtomicInteger::get).register(registry);
+    }
+
+    @PostConstruct
+    void start() {
+        if (!enabled) return;
+        log.info("chat write-behind enabled, durability={} flushIntervalMs={} maxBatch={}", durability, flushIntervalMs, maxBatch);
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * 入队一条消息；返回的 future 在所在批次提交后带着本条的追加结果完成（失败则异常完成）。
+     * GROUP_COMMIT 模式下由 {@link #append} 等待它，ASYNC 模式下调用方可以忽略。
+     */
+    public CompletableFuture<ChatRecordService.AppendResult> enqueue(UUID sessionId, String role, String content, Instant ts) {
+        String itemJson;
+        try {
+            // seq 由批量语句在库里按会话头计数分配，这里只带 ts/role/content
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("ts", ts.toString());
+            item.put("role", role);
+            item.put("content", content);
+            itemJson = om.writeValueAsString(item);
+        } catch (Exception e) {
+            throw new IllegalStateException("serialize item failed", e);
+        }
+
+        Pending p = new Pending(itemJson, ts, new CompletableFuture<>(), 0);
+        synchronized (lock) {
+            pending.computeIfAbsent(sessionId, k -> new ArrayList<>()).add(p);
+        }
+        appended.increment();
+        if (pendingCount.incrementAndGet() >= maxBatch && flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+        return p.done;
+    }
+
+    /**
+     * 按配置的持久性语义追加：GROUP_COMMIT 阻塞到提交并返回追加结果，ASYNC 直接返回 null。
+     * GROUP_COMMIT 等超时时见 {@link #awaitCommit}：确定没写就抛异常，可能已提交则返回 null。
+     */
+    public ChatRecordService.AppendResult append(UUID sessionId, String role, String content, Instant ts) {
+        CompletableFuture<ChatRecordService.AppendResult> f = enqueue(sessionId, role, content, ts);
+        if (durability == Durability.GROUP_COMMIT) {
+            awaitCommit(sessionId, f);
+        }
+        return f.isDone() ? f.join() : null;
+    }
+
+    /**
+     * GROUP_COMMIT 下等 {@link #enqueue} 返回的 future 最多 commit-timeout-ms：
+     * 超时（或被中断）时若这条还在缓冲里没被 flush 取走，就撤回并抛异常，调用方可以放心重试；
+     * 已被取走说明正在提交，可能已经落库，只记日志、不报失败，最终结果看 future。提交失败照常抛异常。
+     */
+    public void awaitCommit(UUID sessionId, CompletableFuture<ChatRecordService.AppendResult> f) {
+        try {
+            f.get(commitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            if (withdraw(sessionId, f)) {
+                throw new IllegalStateException("write-behind append timed out before flush, not written, session=" + sessionId, te);
+            }
+            log.warn("write-behind append still committing after {}ms, may have committed, session={}", commitTimeoutMs, sessionId);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            if (withdraw(sessionId, f)) {
+                throw new IllegalStateException("write-behind append interrupted before flush, not written", ie);
+            }
+            log.warn("write-behind append interrupted while committing, may have committed, session={}", sessionId);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("write-behind append failed, session=" + sessionId, e.getCause());
+        }
+    }
+
+    /** 还在缓冲里（含等重试的）就摘掉并让 future 失败；已被 flush 取走返回 false */
+    private boolean withdraw(UUID sessionId, CompletableFuture<ChatRecordService.AppendResult> f) {
+        synchronized (lock) {
+            List<Pending> items = pending.get(sessionId);
+            if (items == null || !items.removeIf(p -> p.done == f)) return false;
+            if (items.isEmpty()) pending.remove(sessionId);
+        }
+        pendingCount.decrementAndGet();
+        f.completeExceptionally(new CancellationException("write-behind append withdrawn before flush"));
+        return true;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("write-behind flush failed", e);
+        }
+    }
+
+    /** 取走当前缓冲，每个会话一条语句、一个事务；只在 flusher 线程（或停机时）调用，保证同一会话的批次按顺序落库 */
+    void flush() {
+        flushScheduled.set(false);
+        Map<UUID, List<Pending>> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        int messages = batch.values().stream().mapToInt(List::size).sum();
+        pendingCount.addAndGet(-messages);
+
+        Map<UUID, List<Pending>> retry = new LinkedHashMap<>();
+        int committed = 0;
+        long t0 = System.nanoTime();
+        for (Map.Entry<UUID, List<Pending>> e : batch.entrySet()) {
+            UUID sessionId = e.getKey();
+            List<Pending> items = e.getValue();
+            List<ChatMessageRepository.AppendResultView> rows;
+            try {
+                rows = tx.execute(status -> appendSession(sessionId, items));
+            } catch (RuntimeException ex) {
+                retryOrFail(sessionId, items, ex, retry);
+                continue;
+            }
+            if (rows == null || rows.size() != items.size()) {
+                failed.increment(items.size());
+                log.error("write-behind drop: session not found, session={} messages={}", sessionId, items.size());
+                IllegalStateException nf = new IllegalStateException("session not found: " + sessionId);
+                items.forEach(p -> p.done.completeExceptionally(nf));
+                continue;
+            }
+            committed += items.size();
+            for (int i = 0; i < rows.size(); i++) {
+                items.get(i).done.complete(ChatRecordService.AppendResult.of(rows.get(i)));
+            }
+        }
+        flushTimer.record(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+        batchSize.record(committed);
+        statementsPerFlush.record(batch.size());
+        if (!retry.isEmpty()) requeue(retry);
+    }
+
+    /** 一个会话的整批消息合并成一条追加语句，返回按 seq 排好的结果行 */
+    private List<ChatMessageRepository.AppendResultView> appendSession(UUID sessionId, List<Pending> items) {
+        StringBuilder arr = new StringBuilder(items.size() * 64).append('[');
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) arr.append(',');
+            arr.append(items.get(i).itemJson);
+        }
+        arr.append(']');
+        Instant lastTs = items.get(items.size() - 1).ts;
+        List<ChatMessageRepository.AppendResultView> rows = new ArrayList<>(repo.appendMessages(sessionId, arr.toString(), lastTs));
+        rows.sort(Comparator.comparing(ChatMessageRepository.AppendResultView::getSeq));
+        return rows;
+    }
+
+    /** 会话批次提交失败：最早一条还没用完次数就整段留待重试（保持顺序），否则整段失败 */
+    private void retryOrFail(UUID sessionId, List<Pending> items, RuntimeException ex, Map<UUID, List<Pending>> retry) {
+        int attempt = items.get(0).attempt + 1;
+        if (attempt >= maxAttempts) {
+            failed.increment(items.size());
+            log.error("write-behind drop: session={} messages={} attempts={}", sessionId, items.size(), attempt, ex);
+            items.forEach(p -> p.done.completeExceptionally(ex));
+            return;
+        }
+        retried.increment(items.size());
+        log.warn("write-behind retry session={} messages={} attempt={} cause={}", sessionId, items.size(), attempt, ex.toString());
+        List<Pending> again = new ArrayList<>(items.size());
+        for (Pending p : items) again.add(new Pending(p.itemJson, p.ts, p.done, p.attempt + 1));
+        retry.put(sessionId, again);
+    }
+
+    /** 重试的会话放回缓冲头部，排在 flush 期间新追加的同会话消息之前 */
+    private void requeue(Map<UUID, List<Pending>> retry) {
+        int messages = retry.values().stream().mapToInt(List::size).sum();
+        synchronized (lock) {
+            Map<UUID, List<Pending>> merged = new LinkedHashMap<>(retry);
+            pending.forEach((id, items) -> merged.merge(id, items, (head, tail) -> {
+                head.addAll(tail);
+                return head;
+            }));
+            pending = merged;
+        }
+        pendingCount.addAndGet(messages);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        // 停机前把残留的缓冲写掉；重试放回的会话再 flush，直到用完次数
+        for (int i = 0; i < Math.max(1, maxAttempts) && pendingCount.get() > 0; i++) {
+            flushQuietly();
+        }
+    }
+
+    private record Pending(String itemJson, Instant ts, CompletableFuture<ChatRecordService.AppendResult> done, int attempt) {}
+}
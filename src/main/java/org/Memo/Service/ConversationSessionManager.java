@@ -0,0 +1,146 @@
+package org.Memo.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.Memo.Entity.ChatRecord;
+import org.Memo.Repo.ChatRecordRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务号对话的会话管理：同一 unionId 在空闲窗口内复用同一个 chat_record 会话，
+ * 超过空闲时间或跨天就关闭旧会话、开新会话。当前会话只记在内存里，常规路径不读不写 chat_record。
+ *
+ * 调用方（WxChatController）已经按 unionId 串行，这里只需防住后台清理线程的并发。
+ */
+@Slf4j
+@Component
+public class ConversationSessionManager {
+
+    private final ChatRecordService recordService;
+    private final ChatRecordRepository repo;
+
+    private final Duration idle;
+    private final ZoneId zone;
+
+    private final ConcurrentHashMap<String, ActiveSession> active = new ConcurrentHashMap<>();
+
+    private final Counter reused;
+    private final Counter created;
+    private final Counter closed;
+
+    public ConversationSessionManager(ChatRecordService recordService,
+                                      ChatRecordRepository repo,
+                                      @Value("${app.chat.session.idle-minutes:30}") long idleMinutes,
+                                      @Value("${app.tz}") String tz,
+                                      MeterRegistry registry) {
+        this.recordService = recordService;
+        this.repo = repo;
+        this.idle = Duration.ofMinutes(Math.max(1, idleMinutes));
+        this.zone = ZoneId.of(tz);
+        this.reused = Counter.builder("chat.session.reused").register(registry);
+        this.created = Counter.builder("chat.session.created").register(registry);
+        this.closed = Counter.builder("chat.session.closed").register(registry);
+        Gauge.builder("chat.session.active", active, Map::size).register(registry);
+    }
+
+    /** 返回该用户当前应写入的会话 id；必要时关闭旧会话并新建 */
+    public UUID sessionFor(String unionId, Instant now) {
+        ActiveSession[] expired = new ActiveSession[1];
+        ActiveSession cur = active.computeIfPresent(unionId, (k, s) -> {
+            if (reusable(s, now)) {
+                s.lastActive = now;
+                return s;
+            }
+            expired[0] = s;
+            return null;
+        });
+        if (cur != null) {
+            reused.increment();
+            return cur.sessionId;
+        }
+
+        if (expired[0] != null) {
+            close(expired[0]);
+        } else {
+            // 内存里没有（刚重启/被清理过）：尝试接上库里最近一个未关闭的会话
+            ChatRecord open = repo.findLatestOpenByOpenId(unionId).orElse(null);
+            if (open != null) {
+                Instant last = open.getLastTs() != null ? open.getLastTs() : open.getStartedAt();
+                ActiveSession resumed = new ActiveSession(open.getSessionId(), open.getStartedAt(), last);
+                if (reusable(resumed, now)) {
+                    resumed.lastActive = now;
+                    active.put(unionId, resumed);
+                    reused.increment();
+                    return resumed.sessionId;
+                }
+                close(resumed);
+            }
+        }
+
+        UUID sessionId = recordService.createSession(unionId, now).getSessionId();
+        active.put(unionId, new ActiveSession(sessionId, now, now));
+        created.increment();
+        log.info("conversation session opened unionId={} sessionId={}", unionId, sessionId);
+        return sessionId;
+    }
+
+    /** 定时关闭空闲超时的会话，closed_at 记为最后活跃时间 */
+    @Scheduled(fixedDelayString = "${app.chat.session.sweep-interval-ms:60000}")
+    public void closeIdleSessions() {
+        Instant now = Instant.now();
+        List<ActiveSession> expired = new ArrayList<>();
+        for (String unionId : active.keySet()) {
+            active.computeIfPresent(unionId, (k, s) -> {
+                if (reusable(s, now)) return s;
+                expired.add(s);
+                return null;
+            });
+        }
+        expired.forEach(this::close);
+        if (!expired.isEmpty()) {
+            log.info("conversation sessions closed by idle sweep, count={}", expired.size());
+        }
+    }
+
+    private boolean reusable(ActiveSession s, Instant now) {
+        if (Duration.between(s.lastActive, now).compareTo(idle) >= 0) return false;
+        // 不跨天：每日总结按天归档，会话在当地零点切开
+        LocalDate startedDay = s.startedAt.atZone(zone).toLocalDate();
+        return startedDay.equals(now.atZone(zone).toLocalDate());
+    }
+
+    private void close(ActiveSession s) {
+        try {
+            recordService.close(s.sessionId, s.lastActive);
+            closed.increment();
+        } catch (Exception e) {
+            log.warn("close conversation session failed sessionId={} cause={}", s.sessionId, e.toString());
+        }
+    }
+
+    private static final class ActiveSession {
+        private final UUID sessionId;
+        private final Instant startedAt;
+        private volatile Instant lastActive;
+
+        private ActiveSession(UUID sessionId, Instant startedAt, Instant lastActive) {
+            this.sessionId = sessionId;
+            this.startedAt = startedAt;
+            this.lastActive = lastActive;
+        }
+    }
+}
@@ -1,25 +1,42 @@
 package org.Memo.Service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonNode;
 import io.micrometer.common.util.StringUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.Memo.DTO.Chat.SummarizeResult;
-import org.Memo.Entity.ChatRecord;
-import org.Memo.Entity.MsgItem;
+import org.Memo.Repo.ChatMessageCursor;
 import org.Memo.Repo.ChatRecordRepository;
 import org.Memo.Repo.DailyArticleSummaryRepository;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.*;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.springframework.util.CollectionUtils;
 
 
@@ -27,162 +44,417 @@ import org.springframework.util.CollectionUtils;
 @Service
 @RequiredArgsConstructor
 public class DailySummarizeService {
-    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule());
-
     private final ChatRecordRepository chatRepo;
+    private final ChatRecordService chatRecordService;
     private final DailyArticleSummaryRepository summaryRepo;
+    private final DailySummaryService dailySummaryService;
     private final AgentClient agentClient; // 封装HTTP调用Agent
+    private final MeterRegistry meterRegistry;
     @Value("${app.tz}") private String tz;
 
-    public void summarizeForDate(LocalDate targetDate, List<String> orderUnionIds) {
+    /** 同时打包/落库的用户数（DB 侧并发）；Agent 侧并发由 AgentCallGovernor 的 BATCH 通道控制 */
+    @Value("${app.summarize.parallelism:8}") private int parallelism;
+
+    /** 单个用户调用 Agent 失败后的最大重试次数，退避从 retry-backoff-ms 起倍增 */
+    @Value("${app.summarize.maxRetries:3}") private int maxRetries;
+
+    @Value("${app.summarize.retry-backoff-ms:2000}") private long retryBackoffMs;
+
+    /** 同时在内存里的对话稿上限：每个用户从打包到结果落库一直占一个名额 */
+    @Value("${app.summarize.max-in-flight:64}") private int maxInFlight;
+
+    /** 攒够这么多个需要总结的用户就交给 AgentClient 发出（批量接口另有自己的切批上限） */
+    @Value("${app.summarize.send-chunk:20}") private int sendChunk;
+
+    /** 每页扫描多少个用户：一页在一个短事务里读完并打包进内存，页与页之间等名额 */
+    @Value("${app.summarize.scan-page-users:200}") private int scanPageUsers;
+
+    /** 等名额时多久把未凑满的批先发出去 */
+    private static final long FLUSH_WAIT_MS = 200;
+
+    /** 单个用户对话稿的字符上限，超出部分省略；0 表示不限 */
+    @Value("${app.summarize.max-transcript-chars:0}") private int maxTranscriptChars;
+
+    /** 批量总结专用执行器：每个用户一个虚拟线程，实际并发由 permits 限制，不占公共 ForkJoinPool */
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("summarize-", 0).factory());
+    private Semaphore permits;
+
+    @PostConstruct
+    void init() {
+        permits = new Semaphore(Math.max(1, parallelism));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /** 参与输入指纹计算的模型/提示词版本标记；Agent 侧换模型或改提示词时改它，让已有总结失效 */
+    @Value("${app.summarize.model-tag:v1}") private String modelTag;
+
+    public RunReport summarizeForDate(LocalDate targetDate, List<String> orderUnionIds) {
+        return summarizeForDate(targetDate, orderUnionIds, false);
+    }
+
+    /**
+     * 1) 定时批量：orderUnionIds 为空且非 force -> 找当天所有 unionId，已存在则跳过（幂等）
+     * 2) 手动触发：指定 orderUnionIds -> 只跑这些 unionId，重算并 upsert；
+     *    但当天打包输入与已存总结的指纹一致时跳过（force=true 时无条件重算）
+     */
+    public RunReport summarizeForDate(LocalDate targetDate, List<String> orderUnionIds, boolean force) {
+        return summarizeForDate(targetDate, orderUnionIds, force, null);
+    }
+
+    /** 同上，每个用户一出结果就回调 listener（在总结执行器线程上，需自行保证线程安全、不要阻塞太久） */
+    public RunReport summarizeForDate(LocalDate targetDate, List<String> orderUnionIds, boolean force,
+                                      BiConsumer<String, UserOutcome> listener) {
+        boolean manual = !CollectionUtils.isEmpty(orderUnionIds);
+        return summarize(targetDate, manual ? orderUnionIds : null, manual || force, force, listener);
+    }
+
+    /** 某日还没有总结、当天有会话活动的用户（与夜间批量同口径的候选名单） */
+    public List<String> findUsersNeedingSummary(LocalDate targetDate) {
+        ZoneId zone = ZoneId.of(tz);
+        Instant start = targetDate.atStartOfDay(zone).toInstant();
+        Instant end = targetDate.atStartOfDay(zone).plusDays(1).toInstant();
+        return chatRepo.findOpenIdsNeedingSummary(start, end, targetDate);
+    }
+
+    /**
+     * 只跑给定的一组用户（任务队列 worker 认领到的一批），recompute/force 语义与 {@link #summarize} 相同。
+     * 返回的 failedUnionIds 是完整列表，调用方据此逐个回写任务状态。
+     */
+    public RunReport summarizeUsers(LocalDate targetDate, List<String> unionIds, boolean recompute, boolean force) {
+        return summarize(targetDate, unionIds, recompute, force, null);
+    }
+
+    /**
+     * recompute=false：已有总结直接跳过；recompute=true：按输入指纹去重，force 时连指纹也不看。
+     */
+    private RunReport summarize(LocalDate targetDate, List<String> orderUnionIds, boolean recompute, boolean force,
+                                BiConsumer<String, UserOutcome> listener) {
+        long t0 = System.nanoTime();
         ZoneId zone = ZoneId.of(tz);
         Instant start = targetDate.atStartOfDay(zone).toInstant();
         Instant end   = targetDate.atStartOfDay(zone).plusDays(1).toInstant();
         log.info("summarizeForDate start:{} end:{}", start, end);
 
-        // 1) 定时批量：orderUnionId 为空 -> 找当天所有 unionId，已存在则跳过（幂等）
-        // 2) 手动触发：指定 orderUnionId -> 只跑该 unionId，并强制覆盖（即使已存在也会重算并 upsert）
-        final boolean manualOverride = !CollectionUtils.isEmpty(orderUnionIds);
+        // 候选名单一条查询拿到：夜间批量用反连接排除已有总结的用户，重算模式取当日全部活跃用户
+        List<String> unionIds = orderUnionIds != null ? orderUnionIds
+                : recompute ? chatRepo.findDistinctOpenIdsByDay(start, end)
+                : chatRepo.findOpenIdsNeedingSummary(start, end, targetDate);
+
+        log.info("summarizeForDate date={} recompute={} force={} users={}", targetDate, recompute, force, unionIds.size());
+        RunStats stats = new RunStats(unionIds.size(), listener);
 
-        List<String> unionIds;
-        if (manualOverride) {
-            unionIds = orderUnionIds;
-        } else {
-            unionIds = chatRepo.findDistinctOpenIdsByDay(start, end);
+        // 每个用户从打包到结果落库一直占一个 in-flight 名额：内存里同时最多 max-in-flight 份对话稿，
+        // 凑满 send-chunk 个就交给 AgentClient 发出，发出后只剩各自的重试闭包引用对话稿，结果落库即释放
+        SummarizeRun run = new SummarizeRun(targetDate, recompute, force, stats);
+        // 候选名单按 scan-page-users 分页，每页一条按 open_id 过滤的游标查询（整形派发的一波、队列认领的一批也按页查），
+        // 在一个短的只读事务里把这页用户的对话稿打包进内存后就提交、归还连接；
+        // 拿名额（等 Agent 和落库）放在事务外，下游跟不上时停在页与页之间，不会让游标和快照跟着挂几个小时
+        int pageSize = Math.max(1, scanPageUsers);
+        for (int from = 0; from < unionIds.size(); from += pageSize) {
+            List<String> page = unionIds.subList(from, Math.min(unionIds.size(), from + pageSize));
+            Map<String, String> packedByUser = new LinkedHashMap<>();
+            UserTranscripts transcripts = new UserTranscripts(zone, packedByUser::put);
+            chatRecordService.scanDayMessages(start, end, targetDate, page, !recompute, transcripts);
+            transcripts.flush();
+            for (String unionId : page) {
+                String packed = packedByUser.remove(unionId);
+                if (packed == null) {
+                    // 当天没有消息（或非重算模式下已有总结）的用户
+                    stats.skip(unionId);
+                    continue;
+                }
+                run.acquire();
+                run.submit(unionId, () -> packed);
+            }
         }
+        long prepMillis = (System.nanoTime() - t0) / 1_000_000;
+        run.awaitAll();
 
-        log.info("summarizeForDate date={} manualOverride={} unionIds={}", targetDate, manualOverride, unionIds);
+        RunReport report = stats.toReport(targetDate, prepMillis, (System.nanoTime() - t0) / 1_000_000);
+        meterRegistry.timer("summarize.run").record(report.totalMillis(), TimeUnit.MILLISECONDS);
+        meterRegistry.counter("summarize.users", "outcome", "summarized").increment(report.summarized());
+        meterRegistry.counter("summarize.users", "outcome", "failed").increment(report.failed());
+        meterRegistry.counter("summarize.users", "outcome", "unchanged").increment(report.unchanged());
+        log.info("summarize run done date={} candidates={} summarized={} unchanged={} skipped={} failed={} retries={} prepMs={} totalMs={} failedUnionIds={}",
+                targetDate, report.candidates(), report.summarized(), report.unchanged(), report.skipped(),
+                report.failed(), report.retries(), report.prepMillis(), report.totalMillis(),
+                report.failedUnionIds().subList(0, Math.min(LOG_FAILED_IDS, report.failedUnionIds().size())));
+        return report;
+    }
 
-        // 简单并行（注意限速/线程池）。手动触发通常只 1 个 unionId。
-        unionIds.parallelStream().forEach(unionId -> {
-            try {
-                // 定时批量才做幂等跳过；手动触发要允许覆盖旧结果
-                if (!manualOverride && summaryRepo.existsByOpenIdAndSummaryDate(unionId, targetDate)) {
-                    return;
-                }
+    /** 失败后等 retryBackoffMs * 2^attempt 再单独重试，最多 maxRetries 次 */
+    private CompletableFuture<SummarizeResult> withRetry(String unionId, String packed, CompletableFuture<SummarizeResult> attempt,
+                                                         int retried, RunStats stats) {
+        return attempt.handle((res, e) -> {
+            if (e == null) return CompletableFuture.completedFuture(res);
+            if (retried >= maxRetries) return CompletableFuture.<SummarizeResult>failedFuture(e);
+            stats.retries.incrementAndGet();
+            long delay = retryBackoffMs << retried;
+            log.warn("summarize retry {}/{} in {}ms unionId={} cause={}", retried + 1, maxRetries, delay, unionId, e.toString());
+            Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor);
+            return CompletableFuture.supplyAsync(() -> agentClient.summarizeDayAsync(unionId, packed), delayed)
+                    .thenCompose(next -> withRetry(unionId, packed, next, retried + 1, stats));
+        }).thenCompose(f -> f);
+    }
 
-                log.info("summarizeForDate processing unionId={} date={} manualOverride={}", unionId, targetDate, manualOverride);
+    private void withPermit(Runnable task) {
+        permits.acquireUninterruptibly();
+        try {
+            task.run();
+        } finally {
+            permits.release();
+        }
+    }
 
-                List<ChatRecord> msgs = chatRepo.findMessagesByOpenIdAndDay(unionId, start, end);
-                if (msgs == null || msgs.isEmpty()) {
-                    log.info("summarizeForDate no msgs, unionId={} date={}", unionId, targetDate);
-                    return;
-                }
+    /** 写入结果；Agent 返回空文章时不覆盖旧总结，返回 false */
+    private boolean upsertResult(String unionId, LocalDate targetDate, SummarizeResult res, String inputHash, boolean nightly) {
+        // 兜底：避免把原有总结覆盖成空
+        if (res == null || StringUtils.isBlank(res.getArticle())) {
+            log.warn("skip upsert: empty article, unionId={} date={}", unionId, targetDate);
+            return false;
+        }
 
-                String packed = packMessages(msgs, zone);
-                SummarizeResult res = agentClient.summarizeDay(unionId, packed); // 调Agent：含重试
+        // upsert 本身应覆盖旧内容
+        dailySummaryService.upsertSummary(unionId, targetDate, res, inputHash, nightly);
 
-                // 兜底：避免把原有总结覆盖成空
-                if (res == null || StringUtils.isBlank(res.getArticle())) {
-                    log.warn("skip upsert: empty article, unionId={} date={} manualOverride={}", unionId, targetDate, manualOverride);
-                    return;
-                }
+        log.info("summarizeForDate upsert ok, unionId={} date={}", unionId, targetDate);
+        return true;
+    }
+
+    /** 输入指纹：sha256(model-tag + '\n' + 打包文本)，十六进制 */
+    private String inputHash(String packed) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(modelTag.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+            md.update(packed.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /** 日志里最多打印的失败用户数 */
+    private static final int LOG_FAILED_IDS = 50;
+
+    /** 一次总结运行的汇总：各类计数、失败用户与耗时 */
+    public record RunReport(LocalDate date, int candidates, int summarized, int unchanged, int skipped,
+                            int failed, int retries, List<String> failedUnionIds, long prepMillis, long totalMillis) {}
+
+    /** 单个用户在一次运行中的结果 */
+    public enum UserOutcome { SUMMARIZED, UNCHANGED, SKIPPED, FAILED }
+
+    private static final class RunStats {
+        private final int candidates;
+        private final BiConsumer<String, UserOutcome> listener;
+        private final AtomicInteger summarized = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger retries = new AtomicInteger();
+        private final Queue<String> failedIds = new ConcurrentLinkedQueue<>();
+
+        private RunStats(int candidates, BiConsumer<String, UserOutcome> listener) {
+            this.candidates = candidates;
+            this.listener = listener;
+        }
+
+        private void summarized(String unionId) {
+            summarized.incrementAndGet();
+            notify(unionId, UserOutcome.SUMMARIZED);
+        }
 
-                // upsert 本身应覆盖旧内容；手动触发会强制走到这里
-                summaryRepo.upsertSummary(
-                        unionId, targetDate,
-                        res.getArticle(), res.getMoodKeywords(), res.getActionKeywords(), res.getMemoryPoint(), res.getAnalyzeResult(), res.getArticleTitle(),
-                        res.getModel(), Optional.ofNullable(res.getTokenUsageJson()).orElse("{}")
-                );
+        private void unchanged(String unionId) {
+            unchanged.incrementAndGet();
+            notify(unionId, UserOutcome.UNCHANGED);
+        }
 
-                log.info("summarizeForDate upsert ok, unionId={} date={} manualOverride={}", unionId, targetDate, manualOverride);
+        private void skip(String unionId) {
+            skipped.incrementAndGet();
+            notify(unionId, UserOutcome.SKIPPED);
+        }
+
+        private void fail(String unionId) {
+            failed.incrementAndGet();
+            failedIds.add(unionId);
+            notify(unionId, UserOutcome.FAILED);
+        }
+
+        private void notify(String unionId, UserOutcome outcome) {
+            if (listener == null) return;
+            try {
+                listener.accept(unionId, outcome);
             } catch (Exception e) {
-                log.error("summarize fail unionId={} date={} manualOverride={}", unionId, targetDate, manualOverride, e);
+                log.warn("summarize listener error unionId={} outcome={} cause={}", unionId, outcome, e.toString());
             }
-        });
-    }
+        }
 
+        private RunReport toReport(LocalDate date, long prepMillis, long totalMillis) {
+            return new RunReport(date, candidates, summarized.get(), unchanged.get(), skipped.get(),
+                    failed.get(), retries.get(), List.copyOf(failedIds), prepMillis, totalMillis);
+        }
+    }
 
     /**
-     * 批量刷新指定日期列表的所有用户总结（每个日期都会强制重算并 upsert 覆盖旧结果）。
+     * 一次运行内的打包 -> 攒批 -> 调 Agent -> 落库流水线。
+     * 每个用户先 acquire 一个名额，之后无论跳过、失败还是落库成功都恰好 done 一次归还名额。
      */
-    public void summarizeForDates(List<LocalDate> targetDates) {
-        if (CollectionUtils.isEmpty(targetDates)) {
-            log.info("summarizeForDates empty targetDates");
-            return;
-        }
-        // 逐日执行，避免并发过高导致 Agent/DB 压力过大；如需更高并行度可在外层控制线程池。
-        for (LocalDate d : targetDates) {
-            if (d == null) {
-                continue;
-            }
-            summarizeForDate(d, null);
+    private final class SummarizeRun {
+        private final LocalDate targetDate;
+        private final boolean recompute;
+        private final boolean force;
+        private final RunStats stats;
+        private final int slots = Math.max(1, maxInFlight);
+        private final Semaphore inFlight = new Semaphore(slots);
+        /** 只存在途用户的指纹，done 时移除 */
+        private final Map<String, String> hashByUser = new ConcurrentHashMap<>();
+        private LinkedHashMap<String, String> chunk = new LinkedHashMap<>();
+
+        private SummarizeRun(LocalDate targetDate, boolean recompute, boolean force, RunStats stats) {
+            this.targetDate = targetDate;
+            this.recompute = recompute;
+            this.force = force;
+            this.stats = stats;
         }
-    }
 
-    private String packMessages(List<ChatRecord> records, ZoneId zone) {
-        StringBuilder sb = new StringBuilder(4096);
+        /** 占一个名额；等不到时先把攒着的发出去，避免“攒批等名额、名额等攒批” */
+        private void acquire() {
+            try {
+                while (!inFlight.tryAcquire(FLUSH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("summarize interrupted", e);
+            }
+        }
 
-        for (ChatRecord record : records) {
-            String raw = record.getMsgs();
-            if (raw == null || raw.isBlank()) continue;
+        /** 在总结执行器上打包（受 parallelism 限制），需要调 Agent 的进入当前批 */
+        private void submit(String unionId, Supplier<String> packer) {
+            try {
+                executor.execute(() -> withPermit(() -> prepare(unionId, packer)));
+            } catch (RuntimeException e) {
+                stats.fail(unionId);
+                done(unionId);
+                throw e;
+            }
+        }
 
+        private void prepare(String unionId, Supplier<String> packer) {
             try {
-                JsonNode root = MAPPER.readTree(raw);
-                if (!root.isArray()) continue;
-
-                for (JsonNode n : root) {
-                    try {
-                        // 逐字段容错读取
-                        String content = textOrNull(n.get("content"));
-                        if (content == null || content.isBlank()) continue;
-
-                        String role = textOrNull(n.get("role"));
-                        String tsStr = textOrNull(n.get("ts"));
-                        if (tsStr == null || tsStr.isBlank()) continue;
-
-                        // 关键：用 Instant.parse 直接吃标准 ISO-8601（支持纳秒）
-                        Instant ts = parseInstant(tsStr);
-                        if (ts == null) continue;
-
-                        ZonedDateTime zt = ts.atZone(zone);
-                        sb.append('[')
-                                .append(zt.toLocalDate()).append(' ')
-                                .append(zt.toLocalTime().withNano(0))
-                                .append("] ")
-                                .append(normalizeRole(role)).append(": ")
-                                .append(content)
-                                .append('\n');
-
-                    } catch (Exception perItem) {
-                        // 单条坏数据跳过，不影响其它
-                        log.warn("skip bad msg item in record id={}, cause={}",
-                                record.getId(), perItem.toString());
-                    }
+                String packed = packer.get();
+                if (packed == null) {
+                    stats.skip(unionId);
+                    done(unionId);
+                    return;
                 }
+                String hash = inputHash(packed);
+                if (recompute && !force && hash.equals(summaryRepo.findInputHash(unionId, targetDate).orElse(null))) {
+                    stats.unchanged(unionId);
+                    done(unionId);
+                    return;
+                }
+                hashByUser.put(unionId, hash);
+                add(unionId, packed);
             } catch (Exception e) {
-                log.warn("解析 ChatRecord.msgs 失败, openId={}, id={}, 原因={}",
-                        record.getOpenId(), record.getId(), e.getMessage());
+                stats.fail(unionId);
+                done(unionId);
+                log.error("summarize prepare fail unionId={} date={}", unionId, targetDate, e);
             }
         }
 
-        return sb.toString();
-    }
+        private synchronized void add(String unionId, String packed) {
+            chunk.put(unionId, packed);
+            if (chunk.size() >= Math.max(1, sendChunk)) flush();
+        }
 
-    // ------- helpers --------
-    private static String textOrNull(JsonNode node) {
-        return node == null || node.isNull() ? null : node.asText();
-    }
+        /** 把当前批交给 AgentClient（批量/逐个），失败按退避重试；结果到了在执行器上各自 upsert */
+        private synchronized void flush() {
+            if (chunk.isEmpty()) return;
+            Map<String, String> sending = chunk;
+            chunk = new LinkedHashMap<>();
+            Map<String, CompletableFuture<SummarizeResult>> futures;
+            try {
+                futures = agentClient.summarizeDayBatchAsync(sending);
+            } catch (Exception e) {
+                log.error("summarize send fail date={} users={}", targetDate, sending.size(), e);
+                sending.keySet().forEach(unionId -> {
+                    stats.fail(unionId);
+                    done(unionId);
+                });
+                return;
+            }
+            futures.forEach((unionId, future) -> {
+                String packed = sending.get(unionId);
+                withRetry(unionId, packed, future, 0, stats)
+                        .thenAcceptAsync(res -> withPermit(() -> {
+                            // 只有非重算（夜间首次生成，含队列/整形派发）才算 nightly；回填与运维重算不触发自动推送
+                            if (upsertResult(unionId, targetDate, res, hashByUser.get(unionId), !recompute)) {
+                                stats.summarized(unionId);
+                            } else {
+                                stats.fail(unionId);
+                            }
+                        }), executor)
+                        .exceptionally(e -> {
+                            stats.fail(unionId);
+                            log.error("summarize fail unionId={} date={} recompute={}", unionId, targetDate, recompute, e);
+                            return null;
+                        })
+                        .whenComplete((v, e) -> done(unionId));
+            });
+        }
 
-    private String normalizeRole(String role) {
-        if (role == null) return "user";
-        String r = role.toLowerCase();
-        if (r.contains("assistant")) return "assistant";
-        if (r.contains("system")) return "system";
-        return "user";
-    }
+        private void done(String unionId) {
+            hashByUser.remove(unionId);
+            inFlight.release();
+        }
 
-    private static Instant parseInstant(String s) {
-        try {
-            // 标准路径：ISO-8601（支持 0~9 位小数 + 'Z' 或带偏移）
-            return Instant.parse(s);
-        } catch (Exception e1) {
+        /** 等所有名额归还，即本次运行的每个用户都有了结果 */
+        private void awaitAll() {
             try {
-                // 兼容带偏移但不以 Z 结尾的情况
-                return OffsetDateTime.parse(s).toInstant();
-            } catch (Exception e2) {
-                return null;
+                while (!inFlight.tryAcquire(slots, FLUSH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    flush();
+                }
+                inFlight.release(slots);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("summarize interrupted", e);
             }
         }
     }
-}
\ No newline at end of file
+
+    /** 游标行按 open_id 有序：open_id 变化即上一个用户的消息已读完，交出其对话稿 */
+    private final class UserTranscripts implements ChatMessageCursor.RowHandler {
+        private final ZoneId zone;
+        private final BiConsumer<String, String> sink;
+        private String current;
+        private TranscriptWriter writer;
+
+        private UserTranscripts(ZoneId zone, BiConsumer<String, String> sink) {
+            this.zone = zone;
+            this.sink = sink;
+        }
+
+        @Override
+        public void row(String openId, Instant ts, String role, String content) {
+            if (!openId.equals(current)) {
+                flush();
+                current = openId;
+                writer = new TranscriptWriter(zone, maxTranscriptChars);
+            }
+            writer.append(ts, role, content);
+        }
+
+        private void flush() {
+            if (current != null) sink.accept(current, writer.finish());
+            current = null;
+            writer = null;
+        }
+    }
+}
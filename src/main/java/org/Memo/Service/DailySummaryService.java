@@ -1,8 +1,12 @@
 package org.Memo.Service;
 import com.alibaba.fastjson2.JSON;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import lombok.RequiredArgsConstructor;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.Memo.DTO.Chat.SummarizeResult;
 import org.Memo.DTO.DaillySummarysModel;
 import org.Memo.DTO.GetSummaryDetailReq;
 import org.Memo.DTO.GetSummaryDetailRes;
@@ -10,22 +14,47 @@ import org.Memo.DTO.SummaryModel;
 import org.Memo.Entity.ChatRecord;
 import org.Memo.Entity.DailyArticleSummaryEntity;
 import org.Memo.Repo.DailyArticleSummaryRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class DailySummaryService {
 
     private final DailyArticleSummaryRepository repo;
+    private final ApplicationEventPublisher events;
+
+    /** 带给 Agent 的历史总结天数 */
+    private final int preSummaryDays;
+    private final Cache<String, List<SummaryModel>> preSummaryCache;
+
+    public DailySummaryService(DailyArticleSummaryRepository repo,
+                               ApplicationEventPublisher events,
+                               @Value("${app.chat.context.summary-days:30}") int preSummaryDays,
+                               @Value("${app.chat.context.summary-cache-size:10000}") long cacheSize,
+                               @Value("${app.chat.context.summary-cache-ttl-minutes:60}") long cacheTtlMinutes,
+                               MeterRegistry registry) {
+        this.repo = repo;
+        this.events = events;
+        this.preSummaryDays = Math.max(1, preSummaryDays);
+        this.preSummaryCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheTtlMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+        GuavaCacheMetrics.monitor(registry, preSummaryCache, "agent.presummary");
+    }
 
     public DaillySummarysModel getDailySummary(String openid, String searchStartDay, String searchEndDay) {
         List<DailyArticleSummaryEntity> rows;
@@ -91,19 +120,44 @@ public class DailySummaryService {
         return new DateParts(year, month, date);
     }
 
+    /**
+     * 对话时带给 Agent 的历史总结：最近 K 天，按日期倒序。
+     * 结果按用户缓存，upsertSummary 时失效；多实例下其它实例靠 TTL 兜底。
+     */
     public List<SummaryModel> getPreSummaryByUnionId(String unionId) throws JsonProcessingException {
-        List<SummaryModel> result = new ArrayList<>();
-        List<DailyArticleSummaryEntity> articles = repo.findByOpenIdOrderBySummaryDateDesc(unionId);
-        if (articles == null || articles.isEmpty()) return result;
-        for (DailyArticleSummaryEntity article : articles) {
+        if (unionId == null) return new ArrayList<>();
+        try {
+            return new ArrayList<>(preSummaryCache.get(unionId, () -> loadPreSummary(unionId)));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("load pre summary failed, unionId=" + unionId, e.getCause());
+        }
+    }
+
+    /**
+     * 写入/覆盖某天的总结（连同输入指纹），让该用户的上下文缓存失效，并发布 SummaryCompletedEvent 供推送；
+     * nightly 标记是否为夜间首次生成，见 SummaryCompletedEvent
+     */
+    public void upsertSummary(String unionId, LocalDate date, SummarizeResult res, String inputHash, boolean nightly) {
+        repo.upsertSummary(
+                unionId, date,
+                res.getArticle(), res.getMoodKeywords(), res.getActionKeywords(), res.getMemoryPoint(), res.getAnalyzeResult(), res.getArticleTitle(),
+                res.getModel(), Optional.ofNullable(res.getTokenUsageJson()).orElse("{}"), inputHash
+        );
+        preSummaryCache.invalidate(unionId);
+        events.publishEvent(new SummaryCompletedEvent(unionId, date, nightly));
+    }
+
+    private List<SummaryModel> loadPreSummary(String unionId) {
+        List<DailyArticleSummaryRepository.PreSummaryView> articles =
+                repo.findRecentPreSummaries(unionId, PageRequest.of(0, preSummaryDays));
+        List<SummaryModel> result = new ArrayList<>(articles.size());
+        for (DailyArticleSummaryRepository.PreSummaryView article : articles) {
             SummaryModel summaryModel = new SummaryModel();
             summaryModel.setArticle(article.getArticle() == null ? "" : article.getArticle());
             summaryModel.setArticleTitle(article.getArticleTitle() == null ? "" : article.getArticleTitle());
             summaryModel.setActionKeywords(article.getActionKeywords() == null ? "" : article.getActionKeywords());
             summaryModel.setMoodKeywords(article.getMoodKeywords() == null ? "" : article.getMoodKeywords());
 
-            String date = article.getSummaryDate().format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
-
             long ts = Optional.ofNullable(article.getSummaryDate()).orElse(LocalDate.now())
                     .atStartOfDay(ZoneId.systemDefault())
                     .toInstant()
@@ -111,7 +165,7 @@ public class DailySummaryService {
             summaryModel.setCreatTime(ts);
             result.add(summaryModel);
         }
-        return result;
+        return List.copyOf(result);
     }
 
     private record DateParts(String year, String month, String date) {}
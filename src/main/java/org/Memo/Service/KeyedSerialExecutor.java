@@ -0,0 +1,189 @@
+package org.Memo.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 按 key 串行的执行器：同一 key（openid/unionId）的任务严格按提交顺序执行，不同 key 之间并发。
+ *
+ * 每个 key 只是一个 FIFO 邮箱，所有邮箱共享一组虚拟线程；邮箱排空后立刻从表里移除，
+ * 不再为每个用户常驻一个平台线程。单个 key 的排队长度有上限，超出直接拒绝。
+ *
+ * 异步任务（{@link #submitAsync}）返回 future 后立即让出线程，但邮箱保持占用直到 future 完成，
+ * 之后才轮到同 key 的下一个任务：顺序不变，等待 Agent 期间也不占线程。
+ */
+@Slf4j
+@Component
+public class KeyedSerialExecutor {
+
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ExecutorService workers = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("chat-serial-", 0).factory());
+
+    /** 所有 key 排队中（未开始执行）的任务总数 */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final int maxQueuePerKey;
+    private final DistributionSummary queueDepth;
+    private final Counter rejected;
+
+    public KeyedSerialExecutor(@Value("${app.chat.serial.max-queue-per-key:32}") int maxQueuePerKey,
+                               MeterRegistry registry) {
+        this.maxQueuePerKey = Math.max(1, maxQueuePerKey);
+        Gauge.builder("chat.serial.active_keys", mailboxes, Map::size)
+                .description("当前有任务在跑或在排队的 key 数")
+                .register(registry);
+        Gauge.builder("chat.serial.queued_tasks", queued, AtomicInteger::get)
+                .description("所有 key 排队中的任务总数")
+                .register(registry);
+        this.queueDepth = DistributionSummary.builder("chat.serial.queue_depth")
+                .description("入队时该 key 的队列长度")
+                .register(registry);
+        this.rejected = Counter.builder("chat.serial.rejected")
+                .description("因单 key 队列已满被拒绝的任务数")
+                .register(registry);
+    }
+
+    /** 返回绑定到某个 key 的 Executor 视图，调用方用法与原来的 per-user executor 一致 */
+    public Executor forKey(String key) {
+        return task -> execute(key, task);
+    }
+
+    public void execute(String key, Runnable task) {
+        Objects.requireNonNull(task, "task");
+        enqueue(key, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * 提交一个异步任务：task 在该 key 的队首被调用，它返回的 future 完成前同 key 的后续任务不会开始。
+     * 返回的 future 与 task 的结果一致；task 同步抛出的异常也以异常完成的形式返回。
+     */
+    public <T> CompletableFuture<T> submitAsync(String key, Supplier<CompletableFuture<T>> task) {
+        Objects.requireNonNull(task, "task");
+        CompletableFuture<T> result = new CompletableFuture<>();
+        enqueue(key, () -> {
+            CompletableFuture<T> f;
+            try {
+                f = task.get();
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+                return null;
+            }
+            if (f == null) {
+                result.complete(null);
+                return null;
+            }
+            return f.whenComplete((r, e) -> {
+                if (e != null) result.completeExceptionally(e);
+                else result.complete(r);
+            });
+        });
+        return result;
+    }
+
+    /** 共享的虚拟线程执行器，供异步回调切出 I/O 线程做落库等阻塞操作 */
+    public Executor callbackExecutor() {
+        return workers;
+    }
+
+    private void enqueue(String key, Task task) {
+        Objects.requireNonNull(key, "key");
+
+        boolean[] start = new boolean[1];
+        int[] depth = new int[1];
+        mailboxes.compute(key, (k, mb) -> {
+            if (mb == null) mb = new Mailbox();
+            if (mb.tasks.size() >= maxQueuePerKey) {
+                depth[0] = -1;
+                return mb;
+            }
+            mb.tasks.addLast(task);
+            depth[0] = mb.tasks.size();
+            if (!mb.running) {
+                mb.running = true;
+                start[0] = true;
+            }
+            return mb;
+        });
+
+        if (depth[0] < 0) {
+            rejected.increment();
+            throw new RejectedExecutionException("serial queue full, key=" + key + " max=" + maxQueuePerKey);
+        }
+        queued.incrementAndGet();
+        queueDepth.record(depth[0]);
+
+        if (start[0]) {
+            workers.execute(() -> drain(key));
+        }
+    }
+
+    /**
+     * 依次执行某个 key 的任务，直到邮箱为空（此时邮箱已被移除）；
+     * 遇到尚未完成的异步任务就让出线程，由它完成时的回调接着排空。
+     */
+    private void drain(String key) {
+        Task next;
+        while ((next = poll(key)) != null) {
+            CompletableFuture<?> pending = null;
+            try {
+                pending = next.run();
+            } catch (Throwable t) {
+                log.error("serial task failed, key={}", key, t);
+            }
+            if (pending != null && !pending.isDone()) {
+                pending.whenComplete((r, e) -> workers.execute(() -> drain(key)));
+                return;
+            }
+        }
+    }
+
+    private Task poll(String key) {
+        Task[] next = new Task[1];
+        mailboxes.computeIfPresent(key, (k, mb) -> {
+            next[0] = mb.tasks.pollFirst();
+            // 排空即回收：返回 null 会把该 key 从表里移除，下次提交重新建邮箱
+            return next[0] == null ? null : mb;
+        });
+        if (next[0] != null) queued.decrementAndGet();
+        return next[0];
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.shutdown();
+    }
+
+    /** 单个 key 的邮箱；只在 ConcurrentHashMap.compute 内读写，由分段锁保护 */
+    private static final class Mailbox {
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private boolean running;
+    }
+
+    /** 邮箱里的任务：同步任务返回 null，异步任务返回要等待的 future */
+    @FunctionalInterface
+    private interface Task {
+        CompletableFuture<?> run();
+    }
+}
@@ -1,36 +1,109 @@
 package org.Memo.Service;
 import com.alibaba.fastjson2.JSON;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import com.google.common.base.Utf8;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
+import okio.BufferedSink;
 import org.Memo.DTO.Chat.ChatRequest;
 import org.Memo.DTO.Chat.SummarizeResult;
 import org.Memo.DTO.SummaryModel;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
+import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import java.time.Duration;
 import com.fasterxml.jackson.core.type.TypeReference;
-import org.springframework.web.client.RestTemplate;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 
 
 @Slf4j
 @Component
+@RequiredArgsConstructor
 public class OkHttpAgentClient implements AgentClient {
+    private final AgentContextAssembler contextAssembler;
+    private final AgentConnectionPool connectionPool;
+
+    /** 所有 Agent 调用的自适应并发闸门：对话走 INTERACTIVE，总结走 BATCH */
+    private final AgentCallGovernor governor;
+    private final AgentCircuitBreaker breaker;
+
+    @Value("${agent.hedge.enabled:false}")
+    private boolean hedgeEnabled;
+
+    /** 对冲延迟下限；p95 低于它时按它算 */
+    @Value("${agent.hedge.min-delay-ms:2000}")
+    private long hedgeMinDelayMs;
+
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    private static final ScheduledExecutorService HEDGE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "agent-hedge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Timer chatLatency;
+    private Counter hedgeFired;
+    private Counter hedgeWon;
+
+    /** 每日总结等 HTTP 接口走共享的连接池客户端（见 AgentHttpClientConfig） */
+    private final OkHttpClient agentHttpClient;
+
+    @Value("${agent.http.base-url:http://agent:8001}")
+    private String httpBaseUrl;
+
+    @Value("${agent.http.summary-path:/summary/daily}")
+    private String summaryPath;
+
+    /** 批量总结：一次请求带多个用户，单批条数/字节数有上限；Agent 不支持时自动退回逐个调用 */
+    @Value("${agent.http.batch.enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${agent.http.batch.path:/summary/daily/batch}")
+    private String batchPath;
+
+    @Value("${agent.http.batch.max-items:20}")
+    private int batchMaxItems;
+
+    @Value("${agent.http.batch.max-bytes:2000000}")
+    private long batchMaxBytes;
+
+    /** Agent 对批量接口返回过 404/405/501 后置位，本进程内不再尝试批量 */
+    private final AtomicBoolean batchUnsupported = new AtomicBoolean();
+
+    private DistributionSummary batchItems;
+
     @Value("${agent.url}")
     private String ws_url;
 
@@ -42,12 +115,23 @@ public class OkHttpAgentClient implements AgentClient {
             .build();
 
     private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule());
+    private static final MediaType JSON_MEDIA_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    private final MeterRegistry meterRegistry;
+    private Timer streamFirstFrame;
+    private Timer streamTotal;
 
     @Value("${agent.ws.timeoutSeconds:300}")
     private int timeoutSeconds;
 
     @jakarta.annotation.PostConstruct
     void logCfg() {
+        streamFirstFrame = Timer.builder("agent.stream.first_frame").description("流式对话首帧延迟").register(meterRegistry);
+        streamTotal = Timer.builder("agent.stream.total").description("流式对话总耗时").register(meterRegistry);
+        chatLatency = Timer.builder("agent.chat.latency").publishPercentiles(0.95).register(meterRegistry);
+        hedgeFired = Counter.builder("agent.hedge.fired").register(meterRegistry);
+        hedgeWon = Counter.builder("agent.hedge.won").description("对冲请求先于首个尝试返回的次数").register(meterRegistry);
+        batchItems = DistributionSummary.builder("agent.summary.batch_items").description("每个批量总结请求的用户数").register(meterRegistry);
         log.info("WS cfg baseUrl={}",ws_url);
         if (!ws_url.startsWith("ws://") && !ws_url.startsWith("wss://")) {
             throw new IllegalStateException("app.agent.base-url 必须是 ws:// 或 wss://，当前=" + ws_url);
@@ -55,127 +139,509 @@ public class OkHttpAgentClient implements AgentClient {
     }
     /** 一问一答：发一条，收第一段回复返回（如需拼接流式，可扩展） */
     public String chat(String openid, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary, HashMap<String, String> args) {
-        ChatRequest  chatRequest = new ChatRequest();
-        chatRequest.setOpenid(openid);
-        chatRequest.setMessage(message);
-        chatRequest.setPreChat(preChat);
-        chatRequest.setPreDailySummary(preDailySummary);
-        chatRequest.setArgs(args);
-        String payload = JSON.toJSONString(chatRequest);
-        log.info("chat json request={}",payload);
-        String response = sendAndWaitOnce(payload, Duration.ofSeconds(timeoutSeconds));
-        return response;
+        return await(chatAsync(openid, message, preChat, preDailySummary, args));
     }
 
     @Override
     public String chatWs(String openid, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary) {
+        return await(chatWsAsync(openid, message, preChat, preDailySummary));
+    }
+
+    @Override
+    public CompletableFuture<String> chatAsync(String openid, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary, HashMap<String, String> args) {
+        String payload = buildChatPayload(openid, message, preChat, preDailySummary, args);
+        return breaker.call(() -> hedged(() -> chatAttempt(payload)));
+    }
+
+    @Override
+    public CompletableFuture<String> chatWsAsync(String openid, String message, List<ChatRecordService.MsgItem> preChat, List<SummaryModel> preDailySummary) {
+        String payload = buildChatPayload(openid, message, preChat, preDailySummary, null);
+        return breaker.call(() -> hedged(() -> chatAttempt(payload)));
+    }
+
+    /** 单次对话尝试：经 INTERACTIVE 通道发出，成功的耗时计入 agent.chat.latency（对冲延迟取其 p95） */
+    private CompletableFuture<String> chatAttempt(String payload) {
+        return governor.submit(AgentCallGovernor.Lane.INTERACTIVE, () -> {
+            long t0 = System.nanoTime();
+            return sendOnceAsync(payload, Duration.ofSeconds(timeoutSeconds))
+                    .whenComplete((r, e) -> {
+                        if (e == null) chatLatency.record(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+                    });
+        });
+    }
+
+    /**
+     * 对冲请求（agent.hedge.enabled）：首个尝试超过 p95 延迟仍未返回时再发一个，先成功者为准；
+     * 两个都失败才失败。熔断器非 CLOSED 时不对冲，避免给已经吃力的 Agent 加倍压力。
+     * 落后的那个尝试不会被主动取消，会自行完成或超时。
+     */
+    private CompletableFuture<String> hedged(Supplier<CompletableFuture<String>> attempt) {
+        if (!hedgeEnabled) return attempt.get();
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(1);
+        attempt.get().whenComplete((r, e) -> settleHedge(result, remaining, r, e, false));
+
+        ScheduledFuture<?> timer = HEDGE_TIMER.schedule(() -> {
+            if (result.isDone() || !breaker.isClosed()) return;
+            remaining.incrementAndGet();
+            hedgeFired.increment();
+            attempt.get().whenComplete((r, e) -> settleHedge(result, remaining, r, e, true));
+        }, hedgeDelayMs(), TimeUnit.MILLISECONDS);
+        result.whenComplete((r, e) -> timer.cancel(false));
+        return result;
+    }
+
+    private void settleHedge(CompletableFuture<String> result, AtomicInteger remaining, String r, Throwable e, boolean isHedge) {
+        if (e == null) {
+            if (result.complete(r) && isHedge) hedgeWon.increment();
+        } else if (remaining.decrementAndGet() == 0) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /** 对冲延迟：已观测的对话 p95，样本不足时用下限 */
+    private long hedgeDelayMs() {
+        if (chatLatency.count() < HEDGE_MIN_SAMPLES) return hedgeMinDelayMs;
+        for (ValueAtPercentile v : chatLatency.takeSnapshot().percentileValues()) {
+            if (v.percentile() == 0.95) {
+                return Math.max(hedgeMinDelayMs, (long) v.value(TimeUnit.MILLISECONDS));
+            }
+        }
+        return hedgeMinDelayMs;
+    }
+
+    @Override
+    public AgentStream chatStream(String openid, String message, List<ChatRecordService.MsgItem> preChat,
+                                  List<SummaryModel> preDailySummary, Consumer<String> onDelta) {
+        if (!breaker.tryAcquire()) {
+            return new AgentStream(CompletableFuture.failedFuture(new AgentCircuitBreaker.OpenException()), () -> {}, () -> "");
+        }
+        String payload = buildChatPayload(openid, message, preChat, preDailySummary, null);
+        Request req = new Request.Builder().url(trimEnd(ws_url)).build();
+
+        long startNanos = System.nanoTime();
+        CompletableFuture<String> done = new CompletableFuture<>();
+        StringBuilder buf = new StringBuilder();
+        AtomicBoolean firstFrame = new AtomicBoolean(true);
+
+        WebSocketListener listener = new WebSocketListener() {
+            @Override public void onOpen(WebSocket webSocket, Response response) {
+                webSocket.send(payload);
+            }
+            @Override public void onMessage(WebSocket webSocket, String text) {
+                if (firstFrame.compareAndSet(true, false)) {
+                    streamFirstFrame.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                }
+                StreamFrame frame = parseStreamFrame(text);
+                if (frame.delta() != null && !frame.delta().isEmpty()) {
+                    synchronized (buf) {
+                        buf.append(frame.delta());
+                    }
+                    try {
+                        onDelta.accept(frame.delta());
+                    } catch (Exception e) {
+                        log.warn("stream onDelta failed openid={} cause={}", openid, e.toString());
+                    }
+                }
+                if (frame.end()) {
+                    complete();
+                    webSocket.close(1000, "done");
+                }
+            }
+            @Override public void onClosing(WebSocket webSocket, int code, String reason) {
+                webSocket.close(1000, null);
+                complete();
+            }
+            @Override public void onClosed(WebSocket webSocket, int code, String reason) {
+                complete();
+            }
+            @Override public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+                done.completeExceptionally(t);
+            }
+            private void complete() {
+                synchronized (buf) {
+                    done.complete(buf.toString());
+                }
+            }
+        };
+
+        // 经 INTERACTIVE 通道放行后才建连；排队期间被取消的不再建连
+        AtomicReference<WebSocket> wsRef = new AtomicReference<>();
+        governor.submit(AgentCallGovernor.Lane.INTERACTIVE, () -> {
+            if (!done.isDone()) wsRef.set(client.newWebSocket(req, listener));
+            return done;
+        }).whenComplete((r, e) -> {
+            // 闸门排队已满直接拒绝、或建连时抛异常：不会有回调来完成 done，这里立刻失败，不再等满超时
+            if (e != null) done.completeExceptionally(e);
+        });
+
+        done.orTimeout(timeoutSeconds, TimeUnit.SECONDS).whenComplete((r, e) -> {
+            streamTotal.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            // 客户端主动断开、本地闸门拒绝都不算 Agent 故障（与 chatAsync 同一套归类）
+            breaker.onCompletion(e);
+            WebSocket ws = wsRef.get();
+            if (e != null && ws != null) ws.cancel();
+        });
+        return new AgentStream(done,
+                () -> {
+                    WebSocket ws = wsRef.get();
+                    if (ws != null) ws.cancel();
+                    done.completeExceptionally(new CancellationException("client disconnected"));
+                },
+                () -> {
+                    synchronized (buf) {
+                        return buf.toString();
+                    }
+                });
+    }
+
+    /** 解析一帧流式输出：JSON 帧取 delta/content/reply 字段，type=end 或 done=true 表示结束；非 JSON 按纯文本增量处理 */
+    private static StreamFrame parseStreamFrame(String text) {
+        if (text == null) return new StreamFrame("", false);
+        String t = text.trim();
+        if (t.startsWith("{")) {
+            try {
+                JsonNode node = MAPPER.readTree(t);
+                boolean end = "end".equalsIgnoreCase(node.path("type").asText())
+                        || node.path("done").asBoolean(false);
+                String delta = null;
+                for (String field : new String[]{"delta", "content", "reply"}) {
+                    if (node.hasNonNull(field)) {
+                        delta = node.get(field).asText();
+                        break;
+                    }
+                }
+                return new StreamFrame(delta, end);
+            } catch (Exception ignore) {
+                // 不是合法 JSON，按纯文本处理
+            }
+        }
+        return new StreamFrame(text, false);
+    }
+
+    private record StreamFrame(String delta, boolean end) {}
+
+    /** 按预算裁剪上下文后序列化；只记录大小和裁剪情况，完整内容放 debug */
+    private String buildChatPayload(String openid, String message, List<ChatRecordService.MsgItem> preChat,
+                                    List<SummaryModel> preDailySummary, HashMap<String, String> args) {
+        AgentContextAssembler.Assembled ctx = contextAssembler.assemble(preChat, preDailySummary);
         ChatRequest  chatRequest = new ChatRequest();
         chatRequest.setOpenid(openid);
         chatRequest.setMessage(message);
-        chatRequest.setPreChat(preChat);
-        chatRequest.setPreDailySummary(preDailySummary);
+        chatRequest.setPreChat(ctx.preChat());
+        chatRequest.setPreDailySummary(ctx.preDailySummary());
+        chatRequest.setArgs(args);
         String payload = JSON.toJSONString(chatRequest);
-        return sendAndWaitOnce(payload, Duration.ofSeconds(timeoutSeconds));
+        log.info("chat request openid={} payloadChars={} preChat={} preSummary={} droppedMsgs={} droppedSummaries={} droppedChars={}",
+                openid, payload.length(), ctx.preChat().size(), ctx.preDailySummary().size(),
+                ctx.droppedMessages(), ctx.droppedSummaries(), ctx.droppedChars());
+        log.debug("chat json request={}", payload);
+        return payload;
     }
 
     /**
      * 通过 WS 调用 Agent 做“每日总结”，返回 SummarizeResult。
      * Agent 端推荐返回 JSON：
      * { "article": "...", "moodKeywords": "专注, 放松, 期待", "model": "gpt-4.1-mini", "tokenUsageJson": "{...}" }
-     * 如返回纯文本（带“# 每日总结 / # 今日情绪关键词”），也会自动解析。
+     * 响应为空、不是 JSON 或没有 article 时抛异常（调用方重试），不返回占位总结。
      */
     @Override
     public SummarizeResult summarizeDay(String openId, String packedText) {
-        SummarizeResult defaultResult = new SummarizeResult("Agent 返回空响应", "sad,sad,sad",
-                "none,none,none","memoryPoint","analyzeResult","title", "qwen", "{}");
-
         try {
-            RestTemplate restTemplate = new RestTemplate();
-            ObjectMapper MAPPER = new ObjectMapper();
+            return summarizeDayAsync(openId, packedText).join();
+        } catch (CompletionException e) {
+            log.error("summarizeDay failed unionId={}", openId, e.getCause());
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+    }
 
-            Map<String, Object> req = Map.of(
-                    "type", "daily_summary",
-                    "openid", openId == null ? "" : openId,
-                    "text", packedText
-            );
+    /**
+     * 异步版：OkHttp enqueue 发请求，回调线程上解析；调用失败或响应为空/无法解析时异常完成，
+     * 由调用方决定重试，不会拿占位总结冒充结果（否则会连同输入指纹落库，这一天再也不会重算）。
+     */
+    @Override
+    public CompletableFuture<SummarizeResult> summarizeDayAsync(String openId, String packedText) {
+        String openid = openId == null ? "" : openId;
+        RequestBody body = jsonBody(g -> {
+            g.writeStartObject();
+            g.writeStringField("type", "daily_summary");
+            g.writeStringField("openid", openid);
+            g.writeStringField("text", packedText);
+            g.writeEndObject();
+        });
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            String reqJson = MAPPER.writeValueAsString(req);
+        return governor.submit(AgentCallGovernor.Lane.BATCH, () -> postJsonAsync(trimEnd(httpBaseUrl) + summaryPath, body))
+                .thenApply(resp -> {
+                    log.info("summarizeDay unionId :{} ,textChars={}, resp={}", openId, packedText.length(), resp);
+                    return parseSummary(resp);
+                });
+    }
 
-            HttpEntity<String> entity = new HttpEntity<>(reqJson, headers);
+    /**
+     * 批量总结：按 max-items / max-bytes 切批，每批一个请求，每个用户一个 future。
+     * 请求体 {"type":"daily_summary_batch","items":[{"openid","text"}...]}，
+     * 响应 {"results":[{"openid","result":{...}} | {"openid","error":"..."}]}；单个用户出错只让他自己的 future 异常完成。
+     * 未开启批量或 Agent 不支持时逐个走 summarizeDayAsync。
+     */
+    @Override
+    public Map<String, CompletableFuture<SummarizeResult>> summarizeDayBatchAsync(Map<String, String> packedByUser) {
+        Map<String, CompletableFuture<SummarizeResult>> out = new LinkedHashMap<>();
+        if (!batchEnabled || batchUnsupported.get()) {
+            packedByUser.forEach((u, text) -> out.put(u, summarizeDayAsync(u, text)));
+            return out;
+        }
 
-            // 调用 Agent 服务
-            String url = "http://agent:8001/summary/daily";
-            String resp = restTemplate.postForObject(url, entity, String.class);
-            log.info("summarizeDay unionId :{} ,resp={}, reqJson:{}",openId, resp, reqJson);
+        List<BatchItem> chunk = new ArrayList<>();
+        long bytes = 0;
+        for (Map.Entry<String, String> e : packedByUser.entrySet()) {
+            BatchItem item = new BatchItem(e.getKey(), e.getValue(), new CompletableFuture<>());
+            out.put(item.openid(), item.result());
+            long size = Utf8.encodedLength(item.text());
+            if (!chunk.isEmpty() && (chunk.size() >= batchMaxItems || bytes + size > batchMaxBytes)) {
+                sendBatch(chunk);
+                chunk = new ArrayList<>();
+                bytes = 0;
+            }
+            chunk.add(item);
+            bytes += size;
+        }
+        if (!chunk.isEmpty()) sendBatch(chunk);
+        return out;
+    }
 
-            if (resp == null || resp.isBlank()) return defaultResult;
+    private void sendBatch(List<BatchItem> chunk) {
+        if (batchUnsupported.get()) {
+            chunk.forEach(this::summarizeSingle);
+            return;
+        }
+        RequestBody body = jsonBody(g -> {
+            g.writeStartObject();
+            g.writeStringField("type", "daily_summary_batch");
+            g.writeArrayFieldStart("items");
+            for (BatchItem it : chunk) {
+                g.writeStartObject();
+                g.writeStringField("openid", it.openid() == null ? "" : it.openid());
+                g.writeStringField("text", it.text());
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        });
+        batchItems.record(chunk.size());
+
+        governor.submit(AgentCallGovernor.Lane.BATCH, () -> postJsonAsync(trimEnd(httpBaseUrl) + batchPath, body)).whenComplete((resp, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof AgentHttpStatusException he && (he.code == 404 || he.code == 405 || he.code == 501)) {
+                    if (batchUnsupported.compareAndSet(false, true)) {
+                        log.warn("agent batch summarize unsupported (HTTP {}), falling back to per-user calls", he.code);
+                    }
+                    chunk.forEach(this::summarizeSingle);
+                    return;
+                }
+                log.error("agent batch summarize failed items={}", chunk.size(), cause);
+                chunk.forEach(it -> it.result().completeExceptionally(cause));
+                return;
+            }
+            completeBatch(chunk, resp);
+        });
+    }
 
-            // 尝试 JSON 解析
-            if (resp.trim().startsWith("{")) {
+    private void summarizeSingle(BatchItem it) {
+        summarizeDayAsync(it.openid(), it.text()).whenComplete((r, e) -> {
+            if (e != null) it.result().completeExceptionally(e);
+            else it.result().complete(r);
+        });
+    }
+
+    private void completeBatch(List<BatchItem> chunk, String resp) {
+        Map<String, JsonNode> byUser = new HashMap<>();
+        try {
+            for (JsonNode node : MAPPER.readTree(resp).path("results")) {
+                byUser.put(node.path("openid").asText(), node);
+            }
+        } catch (Exception e) {
+            log.error("agent batch summarize unparseable resp={}", resp, e);
+            chunk.forEach(it -> it.result().completeExceptionally(e));
+            return;
+        }
+        for (BatchItem it : chunk) {
+            JsonNode node = byUser.get(it.openid() == null ? "" : it.openid());
+            if (node == null) {
+                it.result().completeExceptionally(new IllegalStateException("missing in batch response: " + it.openid()));
+            } else if (node.hasNonNull("error")) {
+                it.result().completeExceptionally(new IllegalStateException("agent batch error: " + node.get("error").asText()));
+            } else {
+                // result 可能是对象，也可能是 JSON 字符串；后者 toString() 会带上引号与转义
+                JsonNode result = node.path("result");
                 try {
-                    return MAPPER.readValue(resp, SummarizeResult.class);
-                } catch (Exception jsonEx) {
-                    Map<String, Object> m = MAPPER.readValue(resp, new TypeReference<Map<String, Object>>() {});
-                    String article = Optional.ofNullable(m.get("article")).map(Object::toString).orElse(defaultResult.getArticle());
-                    String mood = Optional.ofNullable(m.get("moodKeywords")).map(Object::toString).orElse(defaultResult.getMoodKeywords());
-                    String action = Optional.ofNullable(m.get("actionKeywords")).map(Object::toString).orElse(defaultResult.getActionKeywords());
-                    String memoryPoint = Optional.ofNullable(m.get("memoryPoint")).map(Object::toString).orElse(defaultResult.getActionKeywords());
-                    String analyzeResult = Optional.ofNullable(m.get("analyzeResult")).map(Object::toString).orElse(defaultResult.getActionKeywords());
-                    String title = Optional.ofNullable(m.get("articleTitle")).map(Object::toString).orElse(defaultResult.getArticleTitle());
-                    String model = Optional.ofNullable(m.get("model")).map(Object::toString).orElse("default");
-                    String tokenUsageJson = Optional.ofNullable(m.get("tokenUsageJson")).map(Object::toString).orElse("");
-                    return new SummarizeResult(article, mood,action,memoryPoint,analyzeResult,title, model, tokenUsageJson);
+                    it.result().complete(parseSummary(result.isTextual() ? result.asText() : result.toString()));
+                } catch (Exception e) {
+                    it.result().completeExceptionally(e);
                 }
             }
-            return defaultResult;
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return defaultResult;
+    private record BatchItem(String openid, String text, CompletableFuture<SummarizeResult> result) {}
+
+    /** 非 2xx 响应，带状态码，便于区分“不支持”与其它失败 */
+    private static final class AgentHttpStatusException extends IOException {
+        private final int code;
+
+        private AgentHttpStatusException(int code) {
+            super("Agent HTTP failed, code=" + code);
+            this.code = code;
+        }
+    }
+
+    /** 部分字段缺失时的默认值；文章本身缺失时不兜底 */
+    private static SummarizeResult defaultSummary() {
+        return new SummarizeResult("", "sad,sad,sad",
+                "none,none,none","memoryPoint","analyzeResult","title", "qwen", "{}");
+    }
+
+    /** 解析总结响应；为空、不是 JSON 或没有文章时抛 UnusableSummaryException */
+    private static SummarizeResult parseSummary(String resp) {
+        if (resp == null || resp.isBlank()) throw new UnusableSummaryException("empty response");
+        if (!resp.trim().startsWith("{")) throw new UnusableSummaryException("not json: " + abbreviate(resp));
+
+        SummarizeResult defaultResult = defaultSummary();
+        SummarizeResult result;
+        try {
+            result = MAPPER.readValue(resp, SummarizeResult.class);
+        } catch (Exception jsonEx) {
+            try {
+                Map<String, Object> m = MAPPER.readValue(resp, new TypeReference<Map<String, Object>>() {});
+                String article = Optional.ofNullable(m.get("article")).map(Object::toString).orElse(defaultResult.getArticle());
+                String mood = Optional.ofNullable(m.get("moodKeywords")).map(Object::toString).orElse(defaultResult.getMoodKeywords());
+                String action = Optional.ofNullable(m.get("actionKeywords")).map(Object::toString).orElse(defaultResult.getActionKeywords());
+                String memoryPoint = Optional.ofNullable(m.get("memoryPoint")).map(Object::toString).orElse(defaultResult.getActionKeywords());
+                String analyzeResult = Optional.ofNullable(m.get("analyzeResult")).map(Object::toString).orElse(defaultResult.getActionKeywords());
+                String title = Optional.ofNullable(m.get("articleTitle")).map(Object::toString).orElse(defaultResult.getArticleTitle());
+                String model = Optional.ofNullable(m.get("model")).map(Object::toString).orElse("default");
+                String tokenUsageJson = Optional.ofNullable(m.get("tokenUsageJson")).map(Object::toString).orElse("");
+                result = new SummarizeResult(article, mood,action,memoryPoint,analyzeResult,title, model, tokenUsageJson);
+            } catch (Exception e) {
+                log.warn("summarizeDay unparseable resp={}", resp, e);
+                throw new UnusableSummaryException("unparseable: " + abbreviate(resp));
+            }
         }
+        if (result.getArticle() == null || result.getArticle().isBlank()) {
+            throw new UnusableSummaryException("no article: " + abbreviate(resp));
+        }
+        return result;
+    }
+
+    private static String abbreviate(String s) {
+        return s.length() <= 200 ? s : s.substring(0, 200) + "...";
+    }
+
+    /** Agent 返回了 2xx，但内容不能当作总结保存 */
+    static final class UnusableSummaryException extends IllegalStateException {
+        UnusableSummaryException(String message) {
+            super("agent summary unusable: " + message);
+        }
+    }
+
+    /**
+     * 边序列化边写进连接的 JSON 请求体：不先生成整段 JSON 字符串和它的 UTF-8 字节数组，
+     * 大段对话稿只在内存里保留原文一份。长度未知，按 chunked 发送；OkHttp 重试时会重新写一遍。
+     */
+    private static RequestBody jsonBody(JsonBodyWriter writer) {
+        return new RequestBody() {
+            @Override public MediaType contentType() {
+                return JSON_MEDIA_TYPE;
+            }
+            @Override public void writeTo(BufferedSink sink) throws IOException {
+                JsonGenerator g = MAPPER.getFactory().createGenerator(sink.outputStream());
+                g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);   // sink 由 OkHttp 负责关闭
+                writer.write(g);
+                g.close();
+            }
+        };
+    }
+
+    @FunctionalInterface
+    private interface JsonBodyWriter {
+        void write(JsonGenerator g) throws IOException;
+    }
+
+    /** POST 一段 JSON，在 OkHttp 回调线程上以响应体完成；非 2xx 以异常完成 */
+    private CompletableFuture<String> postJsonAsync(String url, RequestBody body) {
+        Call call = agentHttpClient.newCall(new Request.Builder().url(url).post(body).build());
+
+        CompletableFuture<String> f = new CompletableFuture<>();
+        call.enqueue(new Callback() {
+            @Override public void onFailure(Call c, IOException e) {
+                f.completeExceptionally(e);
+            }
+            @Override public void onResponse(Call c, Response response) {
+                try (response) {
+                    if (!response.isSuccessful()) {
+                        f.completeExceptionally(new AgentHttpStatusException(response.code()));
+                        return;
+                    }
+                    ResponseBody rb = response.body();
+                    f.complete(rb != null ? rb.string() : "");
+                } catch (Exception e) {
+                    f.completeExceptionally(e);
+                }
+            }
+        });
+        return f;
     }
 
 
     // ========= 公共 WS 发送/等待 =========
 
-    /** 发送一段文本请求，等待一次回复（第一段 onMessage 即返回），然后主动 close */
-    private String sendAndWaitOnce(String payload, Duration timeout) {
+    /** 一问一答：开启连接池时走常驻连接，池子没有空位或未连上时退回逐次建连 */
+    private CompletableFuture<String> sendOnceAsync(String payload, Duration timeout) {
+        CompletableFuture<String> pooled = connectionPool.submit(payload, timeout.toSeconds());
+        return pooled != null ? pooled : sendPerCallAsync(payload, timeout);
+    }
+
+    /** 逐次建连：发送一段文本请求，以第一段回复完成（在 OkHttp 的读线程上），然后主动 close */
+    private CompletableFuture<String> sendPerCallAsync(String payload, Duration timeout) {
         String url = trimEnd(ws_url);
         Request req = new Request.Builder().url(url).build();
 
-        CountDownLatch done = new CountDownLatch(1);
-        StringBuilder buf = new StringBuilder();
-        AtomicReference<Throwable> err = new AtomicReference<>();
-
+        CompletableFuture<String> done = new CompletableFuture<>();
         WebSocket ws = client.newWebSocket(req, new WebSocketListener() {
             @Override public void onOpen(WebSocket webSocket, Response response) {
                 webSocket.send(payload);
             }
             @Override public void onMessage(WebSocket webSocket, String text) {
-                // 如果服务端是流式分片，这里可改为累计并在 onClosing/onClosed 一起返回
-                buf.append(text);
+                // 如果服务端是流式分片，请用 chatStream
+                done.complete(text);
                 webSocket.close(1000, "done");
             }
             @Override public void onFailure(WebSocket webSocket, Throwable t, Response response) {
-                err.set(t); done.countDown();
+                done.completeExceptionally(new RuntimeException("Agent WS failed", t));
             }
             @Override public void onClosed(WebSocket webSocket, int code, String reason) {
-                done.countDown();
+                done.complete("");
             }
         });
 
+        done.orTimeout(timeout.toSeconds(), TimeUnit.SECONDS).whenComplete((r, e) -> {
+            if (e instanceof TimeoutException) ws.cancel();
+        });
+        return done;
+    }
+
+    /** 同步调用方等待异步结果；保留原来的 RuntimeException 语义 */
+    private static <T> T await(CompletableFuture<T> f) {
         try {
-            if (!done.await(timeout.toSeconds(), TimeUnit.SECONDS)) {
-                ws.cancel();
-                throw new RuntimeException("Agent WS timeout (" + timeout.toSeconds() + "s)");
-            }
-            if (err.get() != null) throw new RuntimeException("Agent WS failed", err.get());
-            return buf.toString();
+            return f.get();
         } catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
-            throw new RuntimeException("Agent WS interrupted", ie);
+            throw new RuntimeException("Agent call interrupted", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException re) throw re;
+            throw new RuntimeException("Agent call failed", cause);
         }
     }
 
@@ -0,0 +1,170 @@
+package org.Memo.Service;
+
+import io.micrometer.common.util.StringUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.Memo.Entity.ChatMessage;
+import org.Memo.Entity.ChatRecord;
+import org.Memo.Repo.ChatMessageRepository;
+import org.Memo.Repo.ChatRecordRepository;
+import org.Memo.Repo.DailyArticleSummaryRepository;
+import org.Memo.Repo.DailyPartialDigestRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * 日内增量总结：会话关闭（或长时间空闲未关闭）时，把该会话当天的消息先交给 Agent 总结成一段局部摘要，
+ * 存进 daily_partial_digest。夜间每日总结的输入变成“各会话摘要 + 摘要之后的尾部消息”，
+ * Agent 负载从 00:05 的一次集中爆发摊到白天，夜间每个用户的输入也短得多。
+ *
+ * 局部摘要走与每日总结相同的 AgentClient.summarizeDayAsync（BATCH 通道），只取返回的 article 作为摘要文本。
+ * 消息太少的会话不做摘要，夜间直接当尾部原文处理；已有当日总结的日期不再做。
+ */
+@Slf4j
+@Service
+public class PartialDigestService {
+
+    private final ChatRecordRepository recordRepo;
+    private final ChatMessageRepository messageRepo;
+    private final DailyPartialDigestRepository digestRepo;
+    private final DailyArticleSummaryRepository summaryRepo;
+    private final AgentClient agentClient;
+
+    @Value("${app.tz}")
+    private String tz;
+
+    @Value("${app.summarize.partial.enabled:false}")
+    private boolean enabled;
+
+    /** 会话当天消息数少于它时不做局部摘要 */
+    @Value("${app.summarize.partial.min-messages:6}")
+    private int minMessages;
+
+    /** 未关闭的会话空闲多久后也做一次摘要 */
+    @Value("${app.summarize.partial.idle-minutes:60}")
+    private long idleMinutes;
+
+    @Value("${app.summarize.partial.sweep-batch:200}")
+    private int sweepBatch;
+
+    @Value("${app.summarize.max-transcript-chars:0}")
+    private int maxTranscriptChars;
+
+    /** 正在做摘要的会话，关闭事件与空闲扫描撞上时只做一次 */
+    private final Set<UUID> inProgress = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("partial-digest-", 0).factory());
+
+    private final Counter digested;
+    private final Counter skipped;
+    private final Counter failed;
+
+    public PartialDigestService(ChatRecordRepository recordRepo, ChatMessageRepository messageRepo,
+                                DailyPartialDigestRepository digestRepo, DailyArticleSummaryRepository summaryRepo,
+                                AgentClient agentClient, MeterRegistry registry) {
+        this.recordRepo = recordRepo;
+        this.messageRepo = messageRepo;
+        this.digestRepo = digestRepo;
+        this.summaryRepo = summaryRepo;
+        this.agentClient = agentClient;
+        this.digested = Counter.builder("summarize.partial.digests").tag("outcome", "digested").register(registry);
+        this.skipped = Counter.builder("summarize.partial.digests").tag("outcome", "skipped").register(registry);
+        this.failed = Counter.builder("summarize.partial.digests").tag("outcome", "failed").register(registry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /** 关闭事务提交后再做，保证读到的是已关闭的会话；不在关闭方的线程上等 Agent */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onSessionClosed(ChatSessionClosedEvent event) {
+        if (!enabled) return;
+        executor.execute(() -> digestSession(event.sessionId()));
+    }
+
+    /** 兜底：进程重启等原因没关掉的会话，空闲超过 idle-minutes 也做摘要（不关闭会话） */
+    @Scheduled(fixedDelayString = "${app.summarize.partial.sweep-interval-ms:300000}")
+    public void sweepIdleSessions() {
+        if (!enabled) return;
+        Instant now = Instant.now();
+        try {
+            List<UUID> sids = digestRepo.findIdleSessionsToDigest(
+                    now.minus(Duration.ofMinutes(idleMinutes)), now.minus(Duration.ofDays(2)), minMessages, sweepBatch);
+            sids.forEach(sid -> executor.execute(() -> digestSession(sid)));
+            if (!sids.isEmpty()) log.info("partial digest sweep: idle sessions={}", sids.size());
+        } catch (Exception e) {
+            log.error("partial digest sweep error", e);
+        }
+    }
+
+    private void digestSession(UUID sessionId) {
+        if (!inProgress.add(sessionId)) return;
+        try {
+            ChatRecord record = recordRepo.findBySessionId(sessionId).orElse(null);
+            if (record == null) return;
+            ZoneId zone = ZoneId.of(tz);
+
+            // 跨天会话按消息所在日期分别摘要，与夜间按天归档一致
+            Map<LocalDate, List<ChatMessage>> byDate = messageRepo.findBySessionId(sessionId).stream()
+                    .collect(Collectors.groupingBy(m -> m.getTs().atZone(zone).toLocalDate(), TreeMap::new, Collectors.toList()));
+            byDate.forEach((date, msgs) -> digestDay(record.getOpenId(), sessionId, date, msgs, zone));
+        } catch (Exception e) {
+            failed.increment();
+            log.error("partial digest failed sessionId={}", sessionId, e);
+        } finally {
+            inProgress.remove(sessionId);
+        }
+    }
+
+    private void digestDay(String openId, UUID sessionId, LocalDate date, List<ChatMessage> msgs, ZoneId zone) {
+        Instant first = msgs.get(0).getTs();
+        Instant last = msgs.get(msgs.size() - 1).getTs();
+        Instant covered = digestRepo.findCoveredUntil(sessionId, date).orElse(null);
+        if (msgs.size() < minMessages
+                || (covered != null && !covered.isBefore(last))
+                || summaryRepo.existsByOpenIdAndSummaryDate(openId, date)) {
+            skipped.increment();
+            return;
+        }
+
+        TranscriptWriter writer = new TranscriptWriter(zone, maxTranscriptChars);
+        msgs.forEach(m -> writer.append(m.getTs(), m.getRole(), m.getContent()));
+        agentClient.summarizeDayAsync(openId, writer.finish())
+                .thenAccept(res -> {
+                    if (res == null || StringUtils.isBlank(res.getArticle())) {
+                        failed.increment();
+                        log.warn("partial digest empty article openId={} sessionId={} date={}", openId, sessionId, date);
+                        return;
+                    }
+                    digestRepo.upsertDigest(openId, date, sessionId, first, last, msgs.size(), res.getArticle());
+                    digested.increment();
+                    log.info("partial digest ok openId={} sessionId={} date={} messages={}", openId, sessionId, date, msgs.size());
+                })
+                .exceptionally(e -> {
+                    failed.increment();
+                    log.warn("partial digest agent error openId={} sessionId={} date={} cause={}", openId, sessionId, date, e.toString());
+                    return null;
+                })
+                .join();
+    }
+}
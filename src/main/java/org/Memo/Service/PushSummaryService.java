@@ -24,6 +24,8 @@ public class PushSummaryService {
     private final WechatOfficialAccountClient wechatOfficialAccountClient;
     private final WxRepository wxRepository;
 
+    private static final String DAILY_TEMPLATE_ID = "0Kd5nPgdYWC_VbqcIADb-luwHpvbV4suELCLBl7gyag";
+
     @Value("${wechat.miniapp.appid:wx24a59aa9e1797a8d}")
     private String miniAppId;
 
@@ -52,41 +54,58 @@ public class PushSummaryService {
             return;
         }
 
-        // 2) 取当日总结内容（用于拼一句话；若你只想固定一句话也可以不查库）
+        // 2) 取当日总结内容（用于拼一句话 + 落地页 articleId）
         DailyArticleSummaryEntity summary = dailySummaryRepo.findByOpenIdAndSummaryDate(unionId, d).stream().findFirst().orElse(null);
-        String title = (summary != null && summary.getArticleTitle() != null && !summary.getArticleTitle().isBlank())
-                ? summary.getArticleTitle()
-                : "今日回响已生成";
-
-        // 3) 组织小程序落地页（你可以按你的页面结构改 pagePath）
-        String pagePath = dailySummaryPagePath;
-        pagePath = pagePath + "?articleId=" + summary.getId() + "&summaryType=Daily";
-
-        // 4) 发送服务号消息（这里走“客服消息/模板消息”均可，由 client 内部实现）
-        String content = "📝 " + "今日回响已生成!" + "点击进入查看";
+        if (summary == null) {
+            log.warn("sendDailySummary skip: summary not found, unionId={}, date={}", unionId, d);
+            return;
+        }
         if (miniAppId == null || miniAppId.isBlank()) {
             log.warn("sendDailySummary skip: miniAppId not configured, unionId={}, date={}, oaOpenId={}", unionId, d, oaOpenId);
             return;
         }
 
         try {
-            String accessToken = wxRepository.getMiniProgramAccessToken();
-            //客服消息
-            //wechatOfficialAccountClient.sendTextWithMiniProgram(accessToken, oaOpenId, content, miniAppId, pagePath);
-
-            // 组装模板消息 data（字段名必须与模板完全一致）
-            HashMap<String, Map<String, String>> data = new HashMap<>();
-            // thing1：记录名称
-            data.put("thing1", new HashMap<>() {{put("value", title);}});
-            // time2：提醒时间
-            data.put("time2", new HashMap<>() {{put("value", d.toString());}});
-            wechatOfficialAccountClient.sendMiniProgramSubscribeMessage(accessToken, user.getOpenId(), "0Kd5nPgdYWC_VbqcIADb-luwHpvbV4suELCLBl7gyag", pagePath,data);
-
-
+            send(user, summary, d);
             log.info("sendDailySummary success: unionId={}, date={}, oaOpenId={}", unionId, d, oaOpenId);
         } catch (Exception e) {
             log.error("sendDailySummary fail: unionId={}, date={}, oaOpenId={}", unionId, d, oaOpenId, e);
         }
     }
 
+    /** 批量推送的前置检查，与 sendDailySummary 的跳过条件一致；可以推送时返回 null */
+    public String skipReason(User user, DailyArticleSummaryEntity summary) {
+        if (user == null) return "user not found";
+        if (user.getOaOpenId() == null || user.getOaOpenId().isBlank()) return "mpOpenId blank";
+        if (summary == null) return "summary not found";
+        if (miniAppId == null || miniAppId.isBlank()) return "miniAppId not configured";
+        return null;
+    }
+
+    /**
+     * 用已查好的用户与总结发一条订阅消息，失败直接抛出（批量推送按异常决定是否重试）。
+     * access_token 走 WxRepository 的缓存，不再每条消息换一次。
+     */
+    public void send(User user, DailyArticleSummaryEntity summary, LocalDate d) {
+        String title = (summary.getArticleTitle() != null && !summary.getArticleTitle().isBlank())
+                ? summary.getArticleTitle()
+                : "今日回响已生成";
+
+        // 3) 组织小程序落地页（你可以按你的页面结构改 pagePath）
+        String pagePath = dailySummaryPagePath + "?articleId=" + summary.getId() + "&summaryType=Daily";
+
+        // 4) 发送小程序订阅消息
+        String accessToken = wxRepository.getMiniProgramAccessToken();
+        //客服消息
+        //wechatOfficialAccountClient.sendTextWithMiniProgram(accessToken, oaOpenId, content, miniAppId, pagePath);
+
+        // 组装模板消息 data（字段名必须与模板完全一致）
+        HashMap<String, Map<String, String>> data = new HashMap<>();
+        // thing1：记录名称
+        data.put("thing1", new HashMap<>() {{put("value", title);}});
+        // time2：提醒时间
+        data.put("time2", new HashMap<>() {{put("value", d.toString());}});
+        wechatOfficialAccountClient.sendMiniProgramSubscribeMessage(accessToken, user.getOpenId(), DAILY_TEMPLATE_ID, pagePath, data);
+    }
+
 }
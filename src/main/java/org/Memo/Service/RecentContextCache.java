@@ -0,0 +1,194 @@
+package org.Memo.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 每个用户最近 N 条消息的内存环形缓冲，给 Agent 拼上下文用。
+ *
+ * append 时顺手写入（只更新已在缓存里的用户），未命中时从库里懒加载一次；
+ * 用户之间按最近访问近似 LRU 淘汰，总占用按估算字节数封顶。
+ * 用户表是 ConcurrentHashMap，锁只加在单个用户的 Ring 上，不同用户的读写互不阻塞；
+ * 加载期间先放一个占位 Ring，这段时间到达的 append 会把占位作废，加载结果只返回给调用方、不进缓存，
+ * 下次读再从库里重新加载，避免缓存里漏掉加载之后才落库的消息。
+ */
+@Slf4j
+@Component
+public class RecentContextCache {
+
+    /** 单条消息的固定开销估算（对象头、引用、ts/role 等） */
+    private static final long ITEM_OVERHEAD_BYTES = 96;
+
+    private final int capacityPerUser;
+    private final long maxBytes;
+
+    /** unionId -> 该用户的环形缓冲；Ring 自身的字段都在 Ring 上同步 */
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>(1024);
+    private final AtomicLong totalBytes = new AtomicLong();
+    /** 访问时钟：Ring.lastAccess 越小越久没用 */
+    private final AtomicLong clock = new AtomicLong();
+    /** 同一时刻只让一个线程做淘汰，其它线程超预算时直接跳过 */
+    private final ReentrantLock evictLock = new ReentrantLock();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public RecentContextCache(@Value("${app.chat.context.max-messages:200}") int capacityPerUser,
+                              @Value("${app.chat.context.cache-max-bytes:67108864}") long maxBytes,
+                              MeterRegistry registry) {
+        this.capacityPerUser = Math.max(1, capacityPerUser);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.hits = Counter.builder("chat.context.cache.hits").register(registry);
+        this.misses = Counter.builder("chat.context.cache.misses").register(registry);
+        this.evictions = Counter.builder("chat.context.cache.evictions").register(registry);
+        Gauge.builder("chat.context.cache.bytes", totalBytes, AtomicLong::get).register(registry);
+        Gauge.builder("chat.context.cache.users", rings, Map::size).register(registry);
+    }
+
+    /** 取该用户最近的消息（时间正序的快照）；未命中时用 loader 从库里加载并放入缓存 */
+    public List<ChatRecordService.MsgItem> get(String unionId, Supplier<List<ChatRecordService.MsgItem>> loader) {
+        Ring ring = rings.get(unionId);
+        if (ring != null) {
+            synchronized (ring) {
+                if (ring.loaded && !ring.removed) {
+                    ring.lastAccess = clock.incrementAndGet();
+                    hits.increment();
+                    return new ArrayList<>(ring.items);
+                }
+            }
+        }
+        misses.increment();
+
+        // 抢到占位的线程负责把结果放进缓存；别的线程正在加载时自己查一次库，不等它
+        Ring mine = new Ring();
+        boolean owner = rings.putIfAbsent(unionId, mine) == null;
+        List<ChatRecordService.MsgItem> loaded;
+        try {
+            loaded = loader.get();
+        } catch (RuntimeException e) {
+            if (owner) rings.remove(unionId, mine);
+            throw e;
+        }
+        if (owner) {
+            boolean kept;
+            synchronized (mine) {
+                kept = !mine.stale;
+                if (kept) {
+                    for (ChatRecordService.MsgItem item : loaded) {
+                        push(mine, item);
+                    }
+                    mine.loaded = true;
+                    mine.lastAccess = clock.incrementAndGet();
+                }
+            }
+            if (kept) {
+                evictOverBudget();
+            } else {
+                rings.remove(unionId, mine);
+            }
+        }
+        return new ArrayList<>(loaded);
+    }
+
+    /** 新消息落库后调用；用户不在缓存里就忽略，正在加载就作废这次加载，下次读时再从库里加载 */
+    public void append(String unionId, ChatRecordService.MsgItem item) {
+        Ring ring = rings.get(unionId);
+        if (ring == null) return;
+        synchronized (ring) {
+            if (ring.removed) return;
+            if (!ring.loaded) {
+                ring.stale = true;
+                return;
+            }
+            push(ring, item);
+            ring.lastAccess = clock.incrementAndGet();
+        }
+        evictOverBudget();
+    }
+
+    public void invalidate(String unionId) {
+        Ring ring = rings.remove(unionId);
+        if (ring != null) retire(ring);
+    }
+
+    /** 从表里摘掉之后调用：退回占用字节，并让还拿着引用的 append / 加载不再写它 */
+    private void retire(Ring ring) {
+        synchronized (ring) {
+            ring.removed = true;
+            ring.stale = true;
+            totalBytes.addAndGet(-ring.bytes);
+            ring.bytes = 0;
+        }
+    }
+
+    /** 调用方持有 ring 的锁 */
+    private void push(Ring ring, ChatRecordService.MsgItem item) {
+        long size = estimate(item);
+        ring.items.addLast(item);
+        ring.bytes += size;
+        long delta = size;
+        while (ring.items.size() > capacityPerUser) {
+            long dropped = estimate(ring.items.removeFirst());
+            ring.bytes -= dropped;
+            delta -= dropped;
+        }
+        totalBytes.addAndGet(delta);
+    }
+
+    /** 超预算时按最近访问从旧到新淘汰，一次降到预算的 90%，避免每次 append 都排序一遍 */
+    private void evictOverBudget() {
+        if (totalBytes.get() <= maxBytes || !evictLock.tryLock()) return;
+        try {
+            long target = maxBytes - maxBytes / 10;
+            List<Candidate> byAge = new ArrayList<>(rings.size());
+            rings.forEach((id, ring) -> {
+                if (ring.loaded) byAge.add(new Candidate(id, ring, ring.lastAccess));
+            });
+            byAge.sort(Comparator.comparingLong(Candidate::lastAccess));
+            for (Candidate c : byAge) {
+                if (totalBytes.get() <= target) break;
+                if (rings.remove(c.unionId(), c.ring())) {
+                    retire(c.ring());
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private static long estimate(ChatRecordService.MsgItem item) {
+        long chars = (item.content() == null ? 0 : item.content().length())
+                + (item.role() == null ? 0 : item.role().length())
+                + (item.ts() == null ? 0 : item.ts().length());
+        return ITEM_OVERHEAD_BYTES + chars * 2;
+    }
+
+    private record Candidate(String unionId, Ring ring, long lastAccess) {}
+
+    private static final class Ring {
+        private final ArrayDeque<ChatRecordService.MsgItem> items = new ArrayDeque<>();
+        private long bytes;
+        /** 加载完成才为 true；之前是占位 */
+        private volatile boolean loaded;
+        /** 加载期间有 append 到达，或已被摘掉：加载结果不能放进缓存 */
+        private boolean stale;
+        private boolean removed;
+        private volatile long lastAccess;
+    }
+}
@@ -0,0 +1,162 @@
+package org.Memo.Service;
+
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 夜间总结的整形派发：不再在 00:05 同一时刻放出所有用户，而是按 unionId 的稳定哈希把每个用户
+ * 映射到时间窗里的一个时刻，按目标速率（rate-per-minute）摊开，到点才开始总结。
+ *
+ * 摊开的跨度 = min(N / rate, 距离 deadline 的时间)，保证在 deadline 前全部放出；
+ * 同一用户每天落在窗口里的相对位置固定。执行落后时（上一波还没跑完），下一波把所有已到点的用户一起放出追赶，
+ * 过了 deadline 剩余的全部放出。
+ *
+ * 单进程模式由本类在专用线程上按波次调用 DailySummarizeService.summarizeUsers；
+ * 任务队列模式下同样的窗口与速率写成 summarize_job.not_before（见 SummarizeJobService.enqueueDaily）。
+ */
+@Slf4j
+@Component
+public class SummarizeDispatcher {
+
+    private final DailySummarizeService summarizeService;
+    private final ZoneId zone;
+
+    @Value("${app.summarize.dispatch.enabled:false}")
+    private boolean enabled;
+
+    /** 当地时间的截止时刻，所有用户须在此之前放出 */
+    @Value("${app.summarize.dispatch.deadline:06:00}")
+    private String deadline;
+
+    /** 目标速率（每分钟放出的用户数）；<=0 表示均匀摊满整个窗口 */
+    @Value("${app.summarize.dispatch.rate-per-minute:200}")
+    private int ratePerMinute;
+
+    /** 派发检查间隔 */
+    @Value("${app.summarize.dispatch.tick-ms:10000}")
+    private long tickMs;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger released = new AtomicInteger();
+    /** 下一个尚未放出的用户的计划时刻；没有待放出的用户时为 null */
+    private volatile Instant nextSlotAt;
+
+    public SummarizeDispatcher(DailySummarizeService summarizeService,
+                               @Value("${app.tz:Asia/Shanghai}") String tz,
+                               MeterRegistry registry) {
+        this.summarizeService = summarizeService;
+        this.zone = ZoneId.of(tz);
+        Gauge.builder("summarize.dispatch.total", total, AtomicInteger::get).register(registry);
+        Gauge.builder("summarize.dispatch.released", released, AtomicInteger::get).register(registry);
+        Gauge.builder("summarize.dispatch.remaining", this, d -> d.total.get() - d.released.get()).register(registry);
+        Gauge.builder("summarize.dispatch.lag_seconds", this, SummarizeDispatcher::lagSeconds)
+                .description("最早一个已到点但尚未放出的用户落后了多久").register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int ratePerMinute() {
+        return ratePerMinute;
+    }
+
+    /** 从 now 到 now 所在本地日期的 deadline 的秒数；当天已过 deadline 时为 0（不顺延到次日） */
+    public long secondsUntilDeadline(Instant now) {
+        ZonedDateTime local = now.atZone(zone);
+        ZonedDateTime end = local.toLocalDate().atTime(LocalTime.parse(deadline)).atZone(zone);
+        return Math.max(0, Duration.between(now, end).getSeconds());
+    }
+
+    /** 摊开的跨度：按速率需要的时长，但不超过到 deadline 的剩余时间 */
+    public long spreadSeconds(int jobs, Instant now) {
+        long window = secondsUntilDeadline(now);
+        if (ratePerMinute <= 0) return window;
+        return Math.min(window, (long) Math.ceil(jobs * 60.0 / ratePerMinute));
+    }
+
+    /** 在专用线程上异步派发某日的总结；上一次还没结束时忽略 */
+    public void dispatchAsync(LocalDate targetDate) {
+        if (!running.compareAndSet(false, true)) {
+            log.warn("summarize dispatch already running, skip date={}", targetDate);
+            return;
+        }
+        Thread.ofVirtual().name("summarize-dispatch").start(() -> {
+            try {
+                dispatch(targetDate);
+            } catch (Exception e) {
+                log.error("summarize dispatch failed date={}", targetDate, e);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    private void dispatch(LocalDate targetDate) throws InterruptedException {
+        Instant windowStart = Instant.now();
+        List<String> candidates = summarizeService.findUsersNeedingSummary(targetDate);
+        long spread = spreadSeconds(candidates.size(), windowStart);
+
+        List<Slot> slots = new ArrayList<>(candidates.size());
+        for (String unionId : candidates) {
+            slots.add(new Slot(unionId, windowStart.plusMillis((long) (slotFraction(unionId) * spread * 1000))));
+        }
+        slots.sort(Comparator.comparing(Slot::at));
+        total.set(slots.size());
+        released.set(0);
+        nextSlotAt = slots.isEmpty() ? null : slots.get(0).at();
+        log.info("summarize dispatch start date={} users={} spreadSeconds={} ratePerMinute={}",
+                targetDate, slots.size(), spread, ratePerMinute);
+
+        int next = 0;
+        while (next < slots.size()) {
+            Instant now = Instant.now();
+            boolean overdue = secondsUntilDeadline(now) == 0;
+            List<String> due = new ArrayList<>();
+            while (next < slots.size() && (overdue || !slots.get(next).at().isAfter(now))) {
+                due.add(slots.get(next++).unionId());
+            }
+            nextSlotAt = next < slots.size() ? slots.get(next).at() : null;
+            if (due.isEmpty()) {
+                Thread.sleep(Math.min(tickMs, Math.max(1, Duration.between(now, slots.get(next).at()).toMillis())));
+                continue;
+            }
+            released.addAndGet(due.size());
+            // 一波跑完才看下一波：落后时下一波自然把所有已到点的用户一起带上
+            summarizeService.summarizeUsers(targetDate, due, false, false);
+        }
+        log.info("summarize dispatch done date={} users={} elapsedSeconds={}",
+                targetDate, slots.size(), Duration.between(windowStart, Instant.now()).getSeconds());
+    }
+
+    private double lagSeconds() {
+        Instant at = nextSlotAt;
+        return at == null ? 0 : Math.max(0, Duration.between(at, Instant.now()).toMillis() / 1000.0);
+    }
+
+    /** unionId 在窗口内的相对位置 [0, 1)，只取决于 unionId，每天一致 */
+    static double slotFraction(String unionId) {
+        int h = Hashing.murmur3_32_fixed().hashString(unionId, StandardCharsets.UTF_8).asInt();
+        return (h & 0xffffffffL) / (double) (1L << 32);
+    }
+
+    private record Slot(String unionId, Instant at) {}
+}
@@ -0,0 +1,319 @@
+package org.Memo.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.Memo.Entity.SummarizeJob;
+import org.Memo.Repo.SummarizeJobRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * 每日总结的持久化任务队列（summarize_job）。
+ *
+ * 入队：每天只有一个副本能在 summarize_run 里登记成功，由它把当日活跃用户各插一行任务。
+ * 执行：任意副本的 worker 用 FOR UPDATE SKIP LOCKED 认领一小批、带租约执行，完成或失败后回写；
+ * 进程崩溃时租约到期，任务被其他副本重新认领。吞吐随副本数线性增加，重启后从剩余任务继续。
+ * 多日期回填同样走这张表，以 backfill:xxx 为批次号，可按批次查询进度。
+ */
+@Slf4j
+@Service
+public class SummarizeJobService {
+
+    private final SummarizeJobRepository jobRepo;
+    private final DailySummarizeService summarizeService;
+    private final SummarizeDispatcher dispatcher;
+    private final String workerId = ManagementFactory.getRuntimeMXBean().getName();
+
+    @Value("${app.tz:Asia/Shanghai}")
+    private String tz;
+
+    /** 每次认领的任务数；一批要在租约内跑完 */
+    @Value("${app.summarize.queue.claim-batch:50}")
+    private int claimBatch;
+
+    /** 租约时长；持有者超过这个时间没回写，任务会被别的 worker 重新认领 */
+    @Value("${app.summarize.queue.lease-seconds:900}")
+    private long leaseSeconds;
+
+    /** 单个任务最多认领次数（含租约过期后的重领），用尽记为 FAILED */
+    @Value("${app.summarize.queue.max-attempts:5}")
+    private int maxAttempts;
+
+    /** 失败后重新认领前的等待，第 n 次失败等 retry-backoff-seconds * 2^(n-1) */
+    @Value("${app.summarize.queue.retry-backoff-seconds:60}")
+    private long retryBackoffSeconds;
+
+    @Value("${app.summarize.queue.enabled:false}")
+    private boolean queueEnabled;
+
+    /** 回填依赖 PostgreSQL（ON CONFLICT / SKIP LOCKED / make_interval），H2 等其它库上直接拒绝 */
+    @Value("${spring.datasource.url:}")
+    private String datasourceUrl;
+
+    /** 未开启队列时，后台回填线程取不到任务（别的进程持有租约）后的等待间隔 */
+    @Value("${app.summarize.backfill.idle-poll-ms:10000}")
+    private long drainIdleMs;
+
+    private static final DateTimeFormatter RUN_KEY_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    /** 本进程正在跑的回填批次 */
+    private final Set<String> draining = ConcurrentHashMap.newKeySet();
+    private final ExecutorService groupExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("summarize-group-", 0).factory());
+
+    private final Counter claimed;
+    private final Counter done;
+    private final Counter failed;
+    /** 每次轮询时刷新，供 gauge 读取，避免每次抓取指标都查库 */
+    private volatile double dueLagSeconds;
+    private volatile long openJobs;
+
+    public SummarizeJobService(SummarizeJobRepository jobRepo, DailySummarizeService summarizeService,
+                               SummarizeDispatcher dispatcher, MeterRegistry registry) {
+        this.jobRepo = jobRepo;
+        this.summarizeService = summarizeService;
+        this.dispatcher = dispatcher;
+        this.claimed = Counter.builder("summarize.queue.jobs").tag("event", "claimed").register(registry);
+        this.done = Counter.builder("summarize.queue.jobs").tag("event", "done").register(registry);
+        this.failed = Counter.builder("summarize.queue.jobs").tag("event", "failed").register(registry);
+        Gauge.builder("summarize.queue.lag_seconds", this, s -> s.dueLagSeconds)
+                .description("已到计划时间仍未被认领的最早任务落后了多久").register(registry);
+        Gauge.builder("summarize.queue.open", this, s -> s.openJobs).register(registry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        groupExecutor.shutdown();
+    }
+
+    /**
+     * 把某日的总结任务入队；同一天只有第一个登记成功的副本真正入队，其余直接返回 -1。
+     * 开启整形派发时按 SummarizeDispatcher 的截止时间与速率给每个任务排 not_before，否则全部立即可做。
+     * 登记与入队在同一个事务里：中途崩溃时登记一起回滚，下次触发（或别的副本）还能重新入队。
+     */
+    @Transactional
+    public int enqueueDaily(LocalDate targetDate) {
+        String runKey = "daily:" + targetDate;
+        if (jobRepo.registerRun(runKey, workerId) == 0) {
+            log.info("summarize queue: run {} already registered by another replica", runKey);
+            return -1;
+        }
+        ZoneId zone = ZoneId.of(tz);
+        Instant start = targetDate.atStartOfDay(zone).toInstant();
+        Instant end = targetDate.atStartOfDay(zone).plusDays(1).toInstant();
+        Instant now = Instant.now();
+        long maxSpread = dispatcher.isEnabled() ? dispatcher.secondsUntilDeadline(now) : 0;
+        int n = jobRepo.enqueueDay(targetDate, runKey, start, end, now, maxSpread, dispatcher.ratePerMinute());
+        log.info("summarize queue: run {} enqueued jobs={} by {}", runKey, n, workerId);
+        return n;
+    }
+
+    /**
+     * 认领并执行一批任务；返回本批认领的数量，0 表示队列里暂时没有可做的任务。
+     */
+    public int runOnce() {
+        return runOnce(null);
+    }
+
+    /** 同上，runKey 非空时只认领该批次的任务 */
+    public int runOnce(String runKey) {
+        int exhausted = jobRepo.failExhausted(maxAttempts);
+        if (exhausted > 0) {
+            failed.increment(exhausted);
+            log.warn("summarize queue: {} jobs failed after lease expiry with attempts exhausted", exhausted);
+        }
+
+        refreshGauges();
+        List<SummarizeJob> jobs = jobRepo.claim(workerId, claimBatch, leaseSeconds, maxAttempts, runKey);
+        if (jobs.isEmpty()) return 0;
+        claimed.increment(jobs.size());
+
+        // 同一日期、同一模式的任务合成一次 summarizeUsers；不同日期的组并行跑，
+        // 总并发仍由 DailySummarizeService 的 parallelism 与 Agent 的 BATCH 通道统一限制
+        Map<List<Object>, List<SummarizeJob>> groups = new LinkedHashMap<>();
+        for (SummarizeJob j : jobs) {
+            groups.computeIfAbsent(List.of(j.getSummaryDate(), j.isRecompute(), j.isForce()), k -> new ArrayList<>()).add(j);
+        }
+        CompletableFuture.allOf(groups.values().stream()
+                .map(g -> CompletableFuture.runAsync(() -> runGroup(g), groupExecutor))
+                .toArray(CompletableFuture[]::new)).join();
+        return jobs.size();
+    }
+
+    /**
+     * 多日期回填：每个日期把当天全部活跃用户按重算模式入队到同一批次 backfill:xxx，立即返回批次号。
+     * 任务行本身就是检查点：已 DONE 的 (日期, 用户) 不会再跑，进程重启后从剩余任务继续。
+     * 开启队列时由各副本的 worker 认领；未开启时本进程起一个后台线程只跑这个批次。
+     * 同一 (用户, 日期) 的任务正在别的批次里执行时无法纳入，按日期记入 summarize_run.skipped_dates，进度里如实报告。
+     * 非 PostgreSQL 库（如默认的 H2）抛 UnsupportedOperationException。
+     */
+    public String startBackfill(List<LocalDate> dates, boolean force) {
+        if (!backfillSupported()) {
+            throw new UnsupportedOperationException(
+                    "backfill needs PostgreSQL (summarize_job, db/003-006); run /ops/summarize/daily per date instead");
+        }
+        String runKey = "backfill:" + LocalDateTime.now(ZoneId.of(tz)).format(RUN_KEY_TIME) + "-"
+                + UUID.randomUUID().toString().substring(0, 8);
+        jobRepo.registerRun(runKey, workerId);
+        ZoneId zone = ZoneId.of(tz);
+        int total = 0;
+        Map<LocalDate, Long> skipped = new TreeMap<>();
+        for (LocalDate d : new TreeSet<>(dates)) {
+            Instant start = d.atStartOfDay(zone).toInstant();
+            Instant end = d.atStartOfDay(zone).plusDays(1).toInstant();
+            long candidates = jobRepo.countDayCandidates(start, end);
+            int enqueued = jobRepo.enqueueBackfillDay(d, runKey, start, end, force);
+            total += enqueued;
+            if (candidates > enqueued) skipped.put(d, candidates - enqueued);
+        }
+        if (!skipped.isEmpty()) {
+            jobRepo.recordSkippedDates(runKey, skipped.entrySet().stream()
+                    .map(e -> e.getKey() + "=" + e.getValue())
+                    .collect(Collectors.joining(",")));
+            log.warn("summarize backfill {} skipped users with a running job: {}", runKey, skipped);
+        }
+        log.info("summarize backfill {} enqueued dates={} jobs={} force={}", runKey, dates.size(), total, force);
+        if (!queueEnabled) drainAsync(runKey);
+        return runKey;
+    }
+
+    public boolean backfillSupported() {
+        return datasourceUrl.startsWith("jdbc:postgresql:");
+    }
+
+    /** 回填进度：各状态计数与按已完成速度估算的剩余时间 */
+    public BackfillStatus backfillStatus(String runKey) {
+        Map<String, Long> counts = new HashMap<>();
+        jobRepo.countByStatus(runKey).forEach(v -> counts.put(v.getStatus(), v.getCnt()));
+        long done = counts.getOrDefault(SummarizeJob.DONE, 0L);
+        long failedCount = counts.getOrDefault(SummarizeJob.FAILED, 0L);
+        long running = counts.getOrDefault(SummarizeJob.RUNNING, 0L);
+        long pending = counts.getOrDefault(SummarizeJob.PENDING, 0L);
+        long remaining = running + pending;
+        Instant startedAt = jobRepo.findRunCreatedAt(runKey).orElse(null);
+
+        Long etaSeconds = null;
+        long finished = done + failedCount;
+        if (startedAt != null && finished > 0 && remaining > 0) {
+            double elapsed = Duration.between(startedAt, Instant.now()).toMillis() / 1000.0;
+            etaSeconds = (long) Math.ceil(elapsed / finished * remaining);
+        } else if (remaining == 0) {
+            etaSeconds = 0L;
+        }
+        Map<String, Long> skippedByDate = new LinkedHashMap<>();
+        if (startedAt != null) {
+            jobRepo.findRunSkippedDates(runKey).filter(v -> !v.isBlank()).ifPresent(v -> {
+                for (String part : v.split(",")) {
+                    String[] kv = part.split("=", 2);
+                    if (kv.length == 2) skippedByDate.put(kv[0], Long.parseLong(kv[1].trim()));
+                }
+            });
+        }
+        long skipped = skippedByDate.values().stream().mapToLong(Long::longValue).sum();
+        return new BackfillStatus(runKey, finished + remaining, done, failedCount, running, pending, remaining,
+                skipped, skippedByDate, startedAt, etaSeconds);
+    }
+
+    /** skipped / skippedByDate：入队时同一 (用户, 日期) 正在别的批次执行、没有纳入本批次的用户数，不计入 total */
+    public record BackfillStatus(String runKey, long total, long done, long failed, long running, long pending,
+                                 long remaining, long skipped, Map<String, Long> skippedByDate,
+                                 Instant startedAt, Long etaSeconds) {}
+
+    /** 未开启队列时，启动后接着跑上次没跑完的回填批次 */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeBackfills() {
+        if (queueEnabled || !backfillSupported()) return;
+        try {
+            jobRepo.findOpenRunKeys("backfill:").forEach(this::drainAsync);
+        } catch (Exception e) {
+            log.warn("summarize backfill resume skipped: {}", e.toString());
+        }
+    }
+
+    /** 在后台线程上跑完一个批次；别的进程持有租约的任务等租约过期后接手 */
+    private void drainAsync(String runKey) {
+        if (!draining.add(runKey)) return;
+        Thread.ofVirtual().name("summarize-backfill").start(() -> {
+            try {
+                while (true) {
+                    if (runOnce(runKey) > 0) continue;
+                    BackfillStatus st = backfillStatus(runKey);
+                    if (st.remaining() == 0) break;
+                    Thread.sleep(drainIdleMs);
+                }
+                log.info("summarize backfill {} finished: {}", runKey, backfillStatus(runKey));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("summarize backfill {} drain error", runKey, e);
+            } finally {
+                draining.remove(runKey);
+            }
+        });
+    }
+
+    private void refreshGauges() {
+        dueLagSeconds = jobRepo.findDueLagSeconds().orElse(0.0);
+        openJobs = jobRepo.countOpen();
+    }
+
+    private void runGroup(List<SummarizeJob> group) {
+        SummarizeJob first = group.get(0);
+        List<String> unionIds = group.stream().map(SummarizeJob::getOpenId).toList();
+        Set<String> failedIds;
+        String error;
+        try {
+            DailySummarizeService.RunReport report =
+                    summarizeService.summarizeUsers(first.getSummaryDate(), unionIds, first.isRecompute(), first.isForce());
+            failedIds = new HashSet<>(report.failedUnionIds());
+            error = "summarize failed";
+        } catch (Exception e) {
+            log.error("summarize queue: group failed date={} jobs={}", first.getSummaryDate(), group.size(), e);
+            failedIds = new HashSet<>(unionIds);
+            error = e.toString();
+        }
+
+        List<Long> okIds = new ArrayList<>();
+        List<Long> badIds = new ArrayList<>();
+        for (SummarizeJob j : group) {
+            (failedIds.contains(j.getOpenId()) ? badIds : okIds).add(j.getId());
+        }
+        // 回写只认当前持有者：租约已过期、被别人接手的任务，这里更新 0 行
+        if (!okIds.isEmpty()) {
+            done.increment(jobRepo.markDone(okIds, workerId));
+        }
+        if (!badIds.isEmpty()) {
+            jobRepo.markFailed(badIds, workerId, error, maxAttempts, retryBackoffSeconds);
+        }
+        log.info("summarize queue: date={} done={} failed={} worker={}", first.getSummaryDate(), okIds.size(), badIds.size(), workerId);
+    }
+}
@@ -0,0 +1,153 @@
+package org.Memo.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 运维触发的每日总结（/ops/summarize/daily）改为后台任务：提交后立即返回 jobId，
+ * 在有界的专用线程池上执行，不再占着 Tomcat 线程等整批跑完。
+ * 任务状态与逐用户结果只保存在本进程内存里，保留 retention-hours 后过期。
+ *
+ * 手动指定用户的任务在每个用户的总结落库（或输入未变、沿用已存总结）后立刻交给推送管线，不再固定延迟一分钟（那时总结可能还没生成）。
+ * 运维重算产生的总结完成事件不会触发自动推送，所以这里显式入队不会重复。
+ */
+@Slf4j
+@Service
+public class SummarizeOpsJobService {
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    private final DailySummarizeService summarizeService;
+    private final SummaryPushPipeline pushPipeline;
+    private final ThreadPoolExecutor executor;
+    private final Cache<String, OpsJob> jobs;
+
+    public SummarizeOpsJobService(DailySummarizeService summarizeService,
+                                  SummaryPushPipeline pushPipeline,
+                                  @Value("${app.summarize.ops.workers:2}") int workers,
+                                  @Value("${app.summarize.ops.queue-capacity:20}") int queueCapacity,
+                                  @Value("${app.summarize.ops.retention-hours:24}") long retentionHours,
+                                  MeterRegistry registry) {
+        this.summarizeService = summarizeService;
+        this.pushPipeline = pushPipeline;
+        AtomicInteger seq = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                r -> {
+                    Thread t = new Thread(r, "summarize-ops-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.jobs = CacheBuilder.newBuilder()
+                .expireAfterWrite(Duration.ofHours(retentionHours))
+                .build();
+        Gauge.builder("summarize.ops.active", executor, ThreadPoolExecutor::getActiveCount).register(registry);
+        Gauge.builder("summarize.ops.queued", executor, e -> e.getQueue().size()).register(registry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 提交一次总结：unionIds 为空时跑当天全部用户（force 语义同 summarizeForDate）。
+     * 队列已满时抛 RejectedExecutionException。
+     */
+    public String submit(LocalDate date, List<String> unionIds, boolean force) {
+        boolean push = unionIds != null && !unionIds.isEmpty();
+        OpsJob job = new OpsJob("ops:" + UUID.randomUUID(), date, push ? List.copyOf(unionIds) : null, force);
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> run(job, push));
+        } catch (RejectedExecutionException e) {
+            jobs.invalidate(job.id);
+            throw e;
+        }
+        log.info("summarize ops job queued id={} date={} users={} force={}", job.id, date,
+                push ? unionIds.size() : "all", force);
+        return job.id;
+    }
+
+    public Optional<JobStatus> status(String jobId) {
+        return Optional.ofNullable(jobs.getIfPresent(jobId)).map(OpsJob::toStatus);
+    }
+
+    /** 逐用户结果：unionId -> SUMMARIZED / UNCHANGED / SKIPPED / FAILED */
+    public Optional<Map<String, DailySummarizeService.UserOutcome>> results(String jobId) {
+        return Optional.ofNullable(jobs.getIfPresent(jobId)).map(j -> Map.copyOf(j.results));
+    }
+
+    private void run(OpsJob job, boolean push) {
+        job.state = State.RUNNING;
+        job.startedAt = Instant.now();
+        try {
+            job.report = summarizeService.summarizeForDate(job.date, job.unionIds, job.force, (unionId, outcome) -> {
+                job.results.put(unionId, outcome);
+                // 输入没变（UNCHANGED）也推：运维常用它来“重发今天的总结”；没有已存总结的由推送管线跳过
+                if (push && (outcome == DailySummarizeService.UserOutcome.SUMMARIZED
+                        || outcome == DailySummarizeService.UserOutcome.UNCHANGED)) {
+                    pushPipeline.enqueue(unionId, job.date);
+                }
+            });
+            job.state = State.DONE;
+        } catch (Exception e) {
+            log.error("summarize ops job failed id={}", job.id, e);
+            job.error = e.toString();
+            job.state = State.FAILED;
+        } finally {
+            job.finishedAt = Instant.now();
+        }
+    }
+
+    public record JobStatus(String jobId, State state, LocalDate date, List<String> unionIds, boolean force,
+                            Instant submittedAt, Instant startedAt, Instant finishedAt, int resultCount,
+                            DailySummarizeService.RunReport report, String error) {}
+
+    private static final class OpsJob {
+        private final String id;
+        private final LocalDate date;
+        private final List<String> unionIds;
+        private final boolean force;
+        private final Instant submittedAt = Instant.now();
+        private final Map<String, DailySummarizeService.UserOutcome> results = new ConcurrentHashMap<>();
+        private volatile State state = State.QUEUED;
+        private volatile Instant startedAt;
+        private volatile Instant finishedAt;
+        private volatile DailySummarizeService.RunReport report;
+        private volatile String error;
+
+        private OpsJob(String id, LocalDate date, List<String> unionIds, boolean force) {
+            this.id = id;
+            this.date = date;
+            this.unionIds = unionIds;
+            this.force = force;
+        }
+
+        private JobStatus toStatus() {
+            return new JobStatus(id, state, date, unionIds, force, submittedAt, startedAt, finishedAt,
+                    results.size(), report, error);
+        }
+    }
+}
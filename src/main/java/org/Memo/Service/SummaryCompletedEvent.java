@@ -0,0 +1,9 @@
+package org.Memo.Service;
+
+import java.time.LocalDate;
+
+/**
+ * 某用户某天的总结已写入/覆盖，由 DailySummaryService.upsertSummary 在落库后发布。
+ * nightly=true 表示来自夜间首次生成（非重算）；回填、运维重算等覆盖旧日期的为 false，不应触发自动推送。
+ */
+public record SummaryCompletedEvent(String unionId, LocalDate date, boolean nightly) {}
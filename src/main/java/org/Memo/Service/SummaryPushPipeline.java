@@ -0,0 +1,292 @@
+package org.Memo.Service;
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.Memo.Entity.DailyArticleSummaryEntity;
+import org.Memo.Entity.User;
+import org.Memo.Repo.DailyArticleSummaryRepository;
+import org.Memo.Repo.UserRepository;
+import org.Memo.Repo.WechatOfficialAccountClient;
+import org.Memo.Repo.WxRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 每日总结的推送管线：总结落库（SummaryCompletedEvent）或运维手动指定用户后入队，
+ * 不再在总结线程里逐个 findByUnionId + 查总结 + 换 token + 同步发送。
+ *
+ * 派发线程攒满 batch-size 或等满 flush-interval-ms 就取出一批，按日期分组，
+ * 用户与总结各一次 IN 查询；再交给有界发送线程池，每次发送前从令牌桶取许可
+ * （permits-per-second 按微信订阅消息接口配额设置），发送池满时由派发线程自己发，形成背压。
+ * 系统繁忙、频率超限、token 失效（顺带刷新缓存的 token）等可重试错误按指数退避重新入队，
+ * 最多 max-attempts 次；用户拒收等不可重试错误直接记失败。
+ *
+ * auto=false 时总结落库不自动推送，只处理运维任务显式入队的用户（与原先行为一致）；
+ * auto=true 时也只推夜间首次生成的总结，回填、运维重算旧日期不会给用户推过去的日子。
+ * 缓冲只在本进程内存里，重启会丢掉未发出的推送。
+ */
+@Slf4j
+@Service
+public class SummaryPushPipeline {
+
+    private final UserRepository userRepo;
+    private final DailyArticleSummaryRepository summaryRepo;
+    private final PushSummaryService pushSummaryService;
+    private final WxRepository wxRepository;
+    private final MeterRegistry registry;
+
+    @Value("${app.push.daily.auto:false}")
+    private boolean auto;
+
+    @Value("${app.push.daily.batch-size:200}")
+    private int batchSize;
+
+    @Value("${app.push.daily.flush-interval-ms:1000}")
+    private long flushIntervalMs;
+
+    @Value("${app.push.daily.queue-capacity:200000}")
+    private int queueCapacity;
+
+    @Value("${app.push.daily.workers:8}")
+    private int workers;
+
+    @Value("${app.push.daily.permits-per-second:50}")
+    private double permitsPerSecond;
+
+    @Value("${app.push.daily.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${app.push.daily.retry-backoff-ms:60000}")
+    private long retryBackoffMs;
+
+    private LinkedBlockingQueue<PushTask> queue;
+    private ThreadPoolExecutor sender;
+    private RateLimiter rateLimiter;
+    private Thread dispatcher;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "summary-push-retry");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicInteger retryPending = new AtomicInteger();
+    private volatile boolean stopped;
+
+    private Counter sent;
+    private Counter failed;
+    private Counter skipped;
+    private Counter retried;
+    private Counter dropped;
+    private Timer sendLatency;
+
+    public SummaryPushPipeline(UserRepository userRepo,
+                               DailyArticleSummaryRepository summaryRepo,
+                               PushSummaryService pushSummaryService,
+                               WxRepository wxRepository,
+                               MeterRegistry registry) {
+        this.userRepo = userRepo;
+        this.summaryRepo = summaryRepo;
+        this.pushSummaryService = pushSummaryService;
+        this.wxRepository = wxRepository;
+        this.registry = registry;
+    }
+
+    @PostConstruct
+    void start() {
+        queue = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+        rateLimiter = RateLimiter.create(permitsPerSecond);
+        AtomicInteger seq = new AtomicInteger();
+        sender = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, workers * 4)),
+                r -> {
+                    Thread t = new Thread(r, "summary-push-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        sent = Counter.builder("push.daily").tag("outcome", "sent").register(registry);
+        failed = Counter.builder("push.daily").tag("outcome", "failed").register(registry);
+        skipped = Counter.builder("push.daily").tag("outcome", "skipped").register(registry);
+        retried = Counter.builder("push.daily").tag("outcome", "retried").register(registry);
+        dropped = Counter.builder("push.daily").tag("outcome", "dropped").description("缓冲已满被丢弃").register(registry);
+        sendLatency = Timer.builder("push.daily.send.latency").publishPercentiles(0.95).register(registry);
+        Gauge.builder("push.daily.queued", queue, LinkedBlockingQueue::size).register(registry);
+        Gauge.builder("push.daily.retry_pending", retryPending, AtomicInteger::get).register(registry);
+        Gauge.builder("push.daily.sending", sender, ThreadPoolExecutor::getActiveCount).register(registry);
+
+        dispatcher = new Thread(this::dispatchLoop, "summary-push-dispatch");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        log.info("summary push pipeline started auto={} batchSize={} workers={} permitsPerSecond={}",
+                auto, batchSize, workers, permitsPerSecond);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        stopped = true;
+        if (dispatcher != null) dispatcher.interrupt();
+        retryScheduler.shutdownNow();
+        if (sender != null) sender.shutdown();
+        int left = queue == null ? 0 : queue.size();
+        if (left > 0) log.warn("summary push pipeline stopped with {} pushes not sent", left);
+    }
+
+    /** 总结提交后再入队，保证批量查询读得到刚写入的总结 */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onSummaryCompleted(SummaryCompletedEvent event) {
+        if (!auto || !event.nightly()) return;
+        enqueue(event.unionId(), event.date());
+    }
+
+    /** 入队一条推送；缓冲已满时丢弃并计数，不阻塞调用方 */
+    public void enqueue(String unionId, LocalDate date) {
+        if (unionId == null || unionId.isBlank() || date == null) return;
+        offer(new PushTask(unionId, date, 0));
+    }
+
+    private void offer(PushTask task) {
+        if (stopped || !queue.offer(task)) {
+            dropped.increment();
+            log.warn("summary push dropped unionId={} date={} queued={}", task.unionId(), task.date(), queue.size());
+        }
+    }
+
+    private void dispatchLoop() {
+        List<PushTask> batch = new ArrayList<>(batchSize);
+        while (!stopped) {
+            try {
+                PushTask first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, Math.max(0, batchSize - 1));
+                dispatchBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // 查询失败已在 dispatchBatch 里按日期组处理；这里不再整批重试，避免已交给发送池的用户重复推送
+                log.error("summary push batch error size={}", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /** 按日期分组，用户与总结各一次 IN 查询，再逐条交给发送线程池 */
+    private void dispatchBatch(List<PushTask> batch) {
+        Map<LocalDate, List<PushTask>> byDate = new LinkedHashMap<>();
+        for (PushTask t : batch) {
+            byDate.computeIfAbsent(t.date(), k -> new ArrayList<>()).add(t);
+        }
+        for (Map.Entry<LocalDate, List<PushTask>> e : byDate.entrySet()) {
+            LocalDate date = e.getKey();
+            Set<String> unionIds = new LinkedHashSet<>();
+            e.getValue().forEach(t -> unionIds.add(t.unionId()));
+
+            Map<String, User> users = new HashMap<>();
+            Map<String, DailyArticleSummaryEntity> summaries = new HashMap<>();
+            try {
+                for (User u : userRepo.findByUnionIdIn(unionIds)) users.put(u.getUnionId(), u);
+                for (DailyArticleSummaryEntity s : summaryRepo.findByOpenIdInAndSummaryDate(unionIds, date)) {
+                    summaries.putIfAbsent(s.getOpenId(), s);
+                }
+            } catch (Exception ex) {
+                // 这一组还一条都没发：整组走重试，其它日期组不受影响
+                log.error("summary push lookup failed date={} size={}", date, e.getValue().size(), ex);
+                e.getValue().forEach(this::retryOrFail);
+                continue;
+            }
+
+            Set<String> seen = new LinkedHashSet<>();
+            for (PushTask t : e.getValue()) {
+                if (!seen.add(t.unionId())) continue;    // 同批内同一用户同一天只推一次
+                User user = users.get(t.unionId());
+                DailyArticleSummaryEntity summary = summaries.get(t.unionId());
+                String reason = pushSummaryService.skipReason(user, summary);
+                if (reason != null) {
+                    skipped.increment();
+                    log.debug("summary push skip unionId={} date={} reason={}", t.unionId(), date, reason);
+                    continue;
+                }
+                try {
+                    sender.execute(() -> send(t, user, summary));
+                } catch (RejectedExecutionException ex) {
+                    retryOrFail(t);
+                }
+            }
+        }
+    }
+
+    private void send(PushTask task, User user, DailyArticleSummaryEntity summary) {
+        rateLimiter.acquire();
+        long t0 = System.nanoTime();
+        try {
+            pushSummaryService.send(user, summary, task.date());
+            sent.increment();
+        } catch (WechatOfficialAccountClient.WechatApiException e) {
+            if (e.isTokenInvalid()) {
+                wxRepository.invalidateMiniProgramAccessToken();
+            }
+            if (e.isRetryable()) {
+                retryOrFail(task);
+            } else {
+                failed.increment();
+                log.info("summary push rejected unionId={} date={} errcode={}", task.unionId(), task.date(), e.getErrcode());
+            }
+        } catch (Exception e) {
+            log.warn("summary push error unionId={} date={} attempt={} cause={}",
+                    task.unionId(), task.date(), task.attempt() + 1, e.toString());
+            retryOrFail(task);
+        } finally {
+            sendLatency.record(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** 第 n 次失败后等 retry-backoff-ms * 2^(n-1) 重新入队（重新查用户与总结），超过 max-attempts 记失败 */
+    private void retryOrFail(PushTask task) {
+        int attempt = task.attempt() + 1;
+        if (attempt >= maxAttempts || stopped) {
+            failed.increment();
+            log.warn("summary push failed unionId={} date={} attempts={}", task.unionId(), task.date(), attempt);
+            return;
+        }
+        retried.increment();
+        retryPending.incrementAndGet();
+        long delay = retryBackoffMs << Math.min(attempt - 1, 10);
+        try {
+            retryScheduler.schedule(() -> {
+                retryPending.decrementAndGet();
+                offer(new PushTask(task.unionId(), task.date(), attempt));
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            retryPending.decrementAndGet();
+            failed.increment();
+        }
+    }
+
+    private record PushTask(String unionId, LocalDate date, int attempt) {}
+}
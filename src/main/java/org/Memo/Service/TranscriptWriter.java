@@ -0,0 +1,56 @@
+package org.Memo.Service;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * 每日总结的对话稿：一条消息一行 "[yyyy-MM-dd HH:mm:ss] role: content"，边读边追加，不先把消息攒成 List。
+ * role=digest 的行是某个会话已做好的局部摘要（见 PartialDigestService），原样标为 digest。
+ * maxChars > 0 时到达上限后不再追加，只在末尾注明省略了多少条，重度用户的单个稿件内存有上限。
+ */
+public final class TranscriptWriter {
+
+    private final ZoneId zone;
+    private final int maxChars;
+    private final StringBuilder sb;
+    private int omitted;
+
+    public TranscriptWriter(ZoneId zone, int maxChars) {
+        this.zone = zone;
+        this.maxChars = maxChars;
+        this.sb = new StringBuilder(maxChars > 0 ? Math.min(maxChars, 4096) : 4096);
+    }
+
+    public void append(Instant ts, String role, String content) {
+        if (content == null || content.isBlank() || ts == null) return;
+        if (maxChars > 0 && (omitted > 0 || sb.length() + content.length() > maxChars)) {
+            omitted++;
+            return;
+        }
+        ZonedDateTime zt = ts.atZone(zone);
+        sb.append('[')
+                .append(zt.toLocalDate()).append(' ')
+                .append(zt.toLocalTime().withNano(0))
+                .append("] ")
+                .append(normalizeRole(role)).append(": ")
+                .append(content)
+                .append('\n');
+    }
+
+    public String finish() {
+        if (omitted > 0) {
+            sb.append("[超出长度上限，已省略之后的 ").append(omitted).append(" 条消息]\n");
+        }
+        return sb.toString();
+    }
+
+    private static String normalizeRole(String role) {
+        if (role == null) return "user";
+        String r = role.toLowerCase();
+        if (r.equals("digest")) return "digest";
+        if (r.contains("assistant")) return "assistant";
+        if (r.contains("system")) return "system";
+        return "user";
+    }
+}
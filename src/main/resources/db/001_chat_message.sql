@@ -0,0 +1,41 @@
+-- =====================================================================
+-- 001 chat_message：消息改为一条一行，chat_record 只保留会话头
+-- 生产库 ddl-auto=validate，发布新版本前手动执行本脚本（可重复执行）
+-- =====================================================================
+
+CREATE TABLE IF NOT EXISTS chat_message (
+    session_id UUID         NOT NULL,
+    seq        INTEGER      NOT NULL,
+    ts         TIMESTAMPTZ  NOT NULL,
+    role       VARCHAR(16)  NOT NULL,
+    content    TEXT         NOT NULL,
+    PRIMARY KEY (session_id, seq)
+);
+
+CREATE INDEX IF NOT EXISTS idx_chat_message_ts ON chat_message (ts);
+CREATE INDEX IF NOT EXISTS idx_chat_record_open_id_started ON chat_record (open_id, started_at);
+
+-- 回填：把历史 msgs jsonb 数组展开成行；seq 用数组下标，避免旧数据里重复的 seq 撞主键
+INSERT INTO chat_message (session_id, seq, ts, role, content)
+SELECT cr.session_id,
+       e.ord::int,
+       COALESCE(CAST(e.item ->> 'ts' AS timestamptz), cr.started_at),
+       COALESCE(e.item ->> 'role', 'user'),
+       COALESCE(e.item ->> 'content', '')
+FROM chat_record cr
+CROSS JOIN LATERAL jsonb_array_elements(
+        CASE WHEN jsonb_typeof(cr.msgs) = 'array' THEN cr.msgs ELSE '[]'::jsonb END
+     ) WITH ORDINALITY AS e(item, ord)
+WHERE jsonb_typeof(e.item) = 'object'
+ON CONFLICT (session_id, seq) DO NOTHING;
+
+-- message_count 与行数对齐，新消息的 seq 从这里继续往后排
+UPDATE chat_record cr
+SET message_count = sub.max_seq
+FROM (SELECT session_id, MAX(seq) AS max_seq FROM chat_message GROUP BY session_id) sub
+WHERE cr.session_id = sub.session_id
+  AND cr.message_count <> sub.max_seq;
+
+-- 确认新版本运行正常后，可释放旧的 jsonb 数组占用的空间：
+-- UPDATE chat_record SET msgs = '[]'::jsonb WHERE msgs <> '[]'::jsonb;
+-- VACUUM (ANALYZE) chat_record;
@@ -0,0 +1,7 @@
+-- =====================================================================
+-- 002 daily_article_summary.input_hash：记录生成总结时的输入指纹，输入没变的重跑直接跳过
+-- 生产库 ddl-auto=validate，发布新版本前手动执行本脚本（可重复执行）
+-- 历史数据保持 NULL，下一次重跑时会正常调用 Agent 并补上指纹
+-- =====================================================================
+
+ALTER TABLE daily_article_summary ADD COLUMN IF NOT EXISTS input_hash VARCHAR(64);
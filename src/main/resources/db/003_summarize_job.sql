@@ -0,0 +1,36 @@
+-- =====================================================================
+-- 003 summarize_job / summarize_run：每日总结改为持久化任务队列，多副本通过 SKIP LOCKED 分摊
+-- 生产库 ddl-auto=validate，发布新版本前手动执行本脚本（可重复执行）
+-- =====================================================================
+
+-- 每个 (用户, 日期) 一行；status: PENDING -> RUNNING -> DONE / FAILED
+CREATE TABLE IF NOT EXISTS summarize_job (
+    id           BIGSERIAL     PRIMARY KEY,
+    open_id      VARCHAR(128)  NOT NULL,
+    summary_date DATE          NOT NULL,
+    run_key      VARCHAR(64)   NOT NULL,
+    recompute    BOOLEAN       NOT NULL DEFAULT FALSE,
+    force        BOOLEAN       NOT NULL DEFAULT FALSE,
+    status       VARCHAR(16)   NOT NULL DEFAULT 'PENDING',
+    attempts     INTEGER       NOT NULL DEFAULT 0,
+    lease_until  TIMESTAMPTZ,
+    locked_by    VARCHAR(128),
+    last_error   TEXT,
+    created_at   TIMESTAMPTZ   NOT NULL DEFAULT NOW(),
+    updated_at   TIMESTAMPTZ   NOT NULL DEFAULT NOW(),
+    CONSTRAINT uq_summarize_job_user_date UNIQUE (open_id, summary_date)
+);
+
+-- 认领扫描只看未完成的任务
+CREATE INDEX IF NOT EXISTS idx_summarize_job_claim
+    ON summarize_job (status, lease_until, id)
+    WHERE status IN ('PENDING', 'RUNNING');
+
+CREATE INDEX IF NOT EXISTS idx_summarize_job_run ON summarize_job (run_key, status);
+
+-- 每次运行一行：主键冲突即说明别的副本已经入队过，本副本不再重复入队
+CREATE TABLE IF NOT EXISTS summarize_run (
+    run_key    VARCHAR(64)  PRIMARY KEY,
+    owner      VARCHAR(128) NOT NULL,
+    created_at TIMESTAMPTZ  NOT NULL DEFAULT NOW()
+);
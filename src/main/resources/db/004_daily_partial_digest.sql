@@ -0,0 +1,21 @@
+-- =====================================================================
+-- 004 daily_partial_digest：会话结束/空闲时先做的局部摘要，夜间总结只需合并摘要与未覆盖的尾部消息
+-- 生产库 ddl-auto=validate，发布新版本前手动执行本脚本（可重复执行）
+-- =====================================================================
+
+-- 一个会话在某一天的消息一行；covered_until 之前（含）的消息已由 digest 覆盖
+CREATE TABLE IF NOT EXISTS daily_partial_digest (
+    id            BIGSERIAL     PRIMARY KEY,
+    open_id       VARCHAR(128)  NOT NULL,
+    summary_date  DATE          NOT NULL,
+    session_id    UUID          NOT NULL,
+    started_at    TIMESTAMPTZ   NOT NULL,
+    covered_until TIMESTAMPTZ   NOT NULL,
+    message_count INTEGER       NOT NULL,
+    digest        TEXT          NOT NULL,
+    created_at    TIMESTAMPTZ   NOT NULL DEFAULT NOW(),
+    updated_at    TIMESTAMPTZ   NOT NULL DEFAULT NOW(),
+    CONSTRAINT uq_daily_partial_digest_session_date UNIQUE (session_id, summary_date)
+);
+
+CREATE INDEX IF NOT EXISTS idx_daily_partial_digest_date_user ON daily_partial_digest (summary_date, open_id);
@@ -0,0 +1,10 @@
+-- =====================================================================
+-- 005 summarize_job.not_before：夜间任务按用户哈希摊到时间窗内，到点前不会被认领
+-- 生产库 ddl-auto=validate，发布新版本前手动执行本脚本（可重复执行）
+-- =====================================================================
+
+ALTER TABLE summarize_job ADD COLUMN IF NOT EXISTS not_before TIMESTAMPTZ;
+
+CREATE INDEX IF NOT EXISTS idx_summarize_job_due
+    ON summarize_job (not_before, id)
+    WHERE status = 'PENDING';
@@ -0,0 +1,7 @@
+-- =====================================================================
+-- 006 summarize_run.skipped_dates：回填时因同一 (用户, 日期) 任务正在执行而没能纳入本批次的用户数，
+-- 按日期记录（"2025-10-01=3,2025-10-02=1"），回填进度接口据此如实报告
+-- 生产库 ddl-auto=validate，发布新版本前手动执行本脚本（可重复执行）
+-- =====================================================================
+
+ALTER TABLE summarize_run ADD COLUMN IF NOT EXISTS skipped_dates TEXT;